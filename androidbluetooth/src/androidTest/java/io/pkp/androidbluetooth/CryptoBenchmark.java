@@ -0,0 +1,175 @@
+package io.pkp.androidbluetooth;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Measures the cost of {@link SecureChannel}: time per MB to seal and open frames of a given size,
+ * and the time of a full, a resumed and a rejected handshake. Both peers run in this process, no
+ * bluetooth is involved. {@link CryptoBenchmarkTest} runs it.
+ */
+public class CryptoBenchmark {
+
+    private static final int WARMUP_MEGABYTES = 1;
+    private static final int MEGABYTE = 1024 * 1024;
+
+    // Configuration
+    int mMegabytes = 16;
+    int mFrameSize = 1024;
+    int mHandshakes = 20;
+
+    /**
+     * Amount of data to seal and open
+     */
+    public void setMegabytes(int megabytes) {
+        this.mMegabytes = Math.max(1, megabytes);
+    }
+
+    /**
+     * Plain bytes per frame
+     */
+    public void setFrameSize(int frameSize) {
+        this.mFrameSize = Math.max(1, Math.min(frameSize, Frames.MAX_MESSAGE_SIZE));
+    }
+
+    /**
+     * Number of handshakes of each kind to average over
+     */
+    public void setHandshakes(int handshakes) {
+        this.mHandshakes = Math.max(1, handshakes);
+    }
+
+    public Result run() throws GeneralSecurityException {
+        Result result = new Result();
+        result.megabytes = mMegabytes;
+        result.frameSize = mFrameSize;
+
+        SessionTicketCache clientTickets = new SessionTicketCache();
+        SessionTicketCache serverTickets = new SessionTicketCache();
+        SecureChannel client = new SecureChannel(clientTickets, null);
+        SecureChannel server = new SecureChannel(serverTickets, null);
+
+        // Full handshakes, tickets are dropped every time
+        long start = System.nanoTime();
+        for (int i = 0; i < mHandshakes; i++) {
+            clientTickets.clear();
+            handshake(client, server);
+        }
+        result.fullHandshakeUs = (System.nanoTime() - start) / mHandshakes / 1000;
+
+        // Resumed handshakes, every one consumes the ticket of the previous
+        start = System.nanoTime();
+        for (int i = 0; i < mHandshakes; i++) {
+            handshake(client, server);
+            if (!client.isResumed())
+                throw new GeneralSecurityException("session was not resumed");
+        }
+        result.resumedHandshakeUs = (System.nanoTime() - start) / mHandshakes / 1000;
+
+        // Rejected resumptions, the server forgets every ticket it issued
+        start = System.nanoTime();
+        for (int i = 0; i < mHandshakes; i++) {
+            serverTickets.clear();
+            handshake(client, server);
+            if (client.isResumed())
+                throw new GeneralSecurityException("forgotten ticket was accepted");
+        }
+        result.rejectedHandshakeUs = (System.nanoTime() - start) / mHandshakes / 1000;
+
+        // Seal on the client, open on the server, in the same buffer
+        byte[] buffer = new byte[mFrameSize + SecureChannel.TAG_SIZE];
+        Arrays.fill(buffer, (byte) 0x5a);
+        long frames = (long) mMegabytes * MEGABYTE / mFrameSize;
+        long warmupFrames = (long) WARMUP_MEGABYTES * MEGABYTE / mFrameSize;
+
+        for (long i = 0; i < warmupFrames; i++)
+            server.open(buffer, 0, client.seal(buffer, 0, mFrameSize));
+
+        long sealNanos = 0;
+        long openNanos = 0;
+        for (long i = 0; i < frames; i++) {
+            long t0 = System.nanoTime();
+            int sealed = client.seal(buffer, 0, mFrameSize);
+            long t1 = System.nanoTime();
+            server.open(buffer, 0, sealed);
+            long t2 = System.nanoTime();
+            sealNanos += t1 - t0;
+            openNanos += t2 - t1;
+        }
+        double processedMegabytes = frames * (double) mFrameSize / MEGABYTE;
+        result.sealMsPerMb = sealNanos / 1e6 / processedMegabytes;
+        result.openMsPerMb = openNanos / 1e6 / processedMegabytes;
+
+        client.stop();
+        server.stop();
+        return result;
+    }
+
+    /**
+     * Runs the handshake between two channels by handing the frames over directly. A rejected
+     * resumption takes a second round trip.
+     */
+    private static void handshake(SecureChannel client, SecureChannel server)
+            throws GeneralSecurityException {
+        DirectLink toServer = new DirectLink();
+        DirectLink toClient = new DirectLink();
+
+        server.start(toClient, false, null);
+        if (!client.start(toServer, true, "benchmark"))
+            throw new GeneralSecurityException("handshake could not be started");
+        for (int round = 0; round < 2 && !client.isEstablished(); round++) {
+            server.onHello(toServer.mFrame, toServer.mFrame.length);
+            client.onHelloReply(toClient.mFrame, toClient.mFrame.length);
+        }
+
+        if (!client.isEstablished() || !server.isEstablished())
+            throw new GeneralSecurityException("handshake failed");
+    }
+
+    /**
+     * Keeps the last frame written instead of sending it
+     */
+    private static class DirectLink implements SecureChannel.Link {
+        byte[] mFrame;
+
+        public boolean writeFrame(int type, byte[] buffer, int offset, int length) {
+            mFrame = Arrays.copyOfRange(buffer, offset, offset + length);
+            return true;
+        }
+
+        public int writeSealed(byte[] buffer, int offset, int length) {
+            return SecureChannel.WRITE_OK;
+        }
+    }
+
+    /**
+     * Results of a benchmark run
+     */
+    public static class Result {
+        public int megabytes;
+        public int frameSize;
+        public double sealMsPerMb;
+        public double openMsPerMb;
+        public long fullHandshakeUs;
+        public long resumedHandshakeUs;
+        public long rejectedHandshakeUs;
+
+        /**
+         * A single line JSON object, for CI trend tracking
+         */
+        public String toJson() {
+            return String.format(Locale.US, "{\"megabytes\":%d,\"frameSize\":%d,"
+                            + "\"sealMsPerMb\":%.3f,\"openMsPerMb\":%.3f,"
+                            + "\"fullHandshakeUs\":%d,\"resumedHandshakeUs\":%d,"
+                            + "\"rejectedHandshakeUs\":%d}",
+                    megabytes, frameSize, sealMsPerMb, openMsPerMb,
+                    fullHandshakeUs, resumedHandshakeUs, rejectedHandshakeUs);
+        }
+
+        @Override
+        public String toString() {
+            return toJson();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package io.pkp.androidbluetooth;
+
+import android.os.Bundle;
+import android.test.InstrumentationTestCase;
+import android.test.InstrumentationTestRunner;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Runs the {@link CryptoBenchmark} for CI trend tracking, along with the load test:
+ * <p/>
+ * ./gradlew :androidbluetooth:connectedAndroidTest
+ * <p/>
+ * The result is logged as a single JSON line with the tag CryptoBenchmark, and written to
+ * crypto-benchmark.json in the files directory of the test app. The instrumentation arguments
+ * megabytes, frameSize and handshakes override the defaults.
+ */
+public class CryptoBenchmarkTest extends InstrumentationTestCase {
+    static final String REPORT_TAG = "CryptoBenchmark";
+    static final String REPORT_FILE = "crypto-benchmark.json";
+
+    public void testBenchmark() throws Exception {
+        Bundle arguments = ((InstrumentationTestRunner) getInstrumentation()).getArguments();
+
+        CryptoBenchmark benchmark = new CryptoBenchmark();
+        benchmark.setMegabytes(getInt(arguments, "megabytes", 16));
+        benchmark.setFrameSize(getInt(arguments, "frameSize", 1024));
+        benchmark.setHandshakes(getInt(arguments, "handshakes", 20));
+
+        CryptoBenchmark.Result result = benchmark.run();
+        String json = result.toJson();
+        Log.i(REPORT_TAG, json);
+        writeReport(json);
+
+        assertTrue("nothing was sealed", result.sealMsPerMb > 0);
+    }
+
+    private void writeReport(String json) throws IOException {
+        File file = new File(getInstrumentation().getContext().getFilesDir(), REPORT_FILE);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write((json + "\n").getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int getInt(Bundle arguments, String key, int defaultValue) {
+        String value = arguments != null ? arguments.getString(key) : null;
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+}
@@ -0,0 +1,370 @@
+package io.pkp.androidbluetooth;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a {@link BluetoothServer} with many simulated clients over a {@link LoopbackTransport},
+ * to find out where the server side breaks without a room full of phones. The server echoes every
+ * message back, clients send at a fixed rate and time the round trip.
+ * <p/>
+ * Configure it with the setters, then call {@link #run()} from a background thread.
+ * {@link LoadGeneratorTest} runs it on CI.
+ */
+public class LoadGenerator {
+    final String DEBUG_TAG = this.getClass().getName();
+
+    static final String SERVICE = "loadgen";
+    static final UUID SERVICE_UUID = UUID.fromString("5e1b0a6c-3a4f-4b8e-9d0c-7f2e61a4c3d8");
+
+    private static final long SAMPLE_INTERVAL = 100;
+    private static final long CONNECT_RETRY_DELAY = 10;
+
+    // Configuration
+    int mClients = 100;
+    int mMessageSize = 64;
+    int mMessageRate = 10;
+    long mDuration = 10000;
+    long mReconnectInterval = 0;
+    int mSlowReaders = 0;
+    long mSlowReadDelay = 50;
+    int mPipeCapacity = 4096;
+
+    // Counters of the current run
+    AtomicLong mSent = new AtomicLong();
+    AtomicLong mReceived = new AtomicLong();
+    AtomicLong mConnects = new AtomicLong();
+    AtomicLong mConnectFailures = new AtomicLong();
+    List<long[]> mLatencies = new ArrayList<long[]>();
+
+    /**
+     * Number of simulated clients connected at the same time
+     */
+    public void setClients(int clients) {
+        this.mClients = clients;
+    }
+
+    /**
+     * Bytes per message, at least 8 for the timestamp
+     */
+    public void setMessageSize(int messageSize) {
+        this.mMessageSize = Math.max(8, messageSize);
+    }
+
+    /**
+     * Messages per second sent by each client
+     */
+    public void setMessageRate(int messageRate) {
+        this.mMessageRate = Math.max(1, messageRate);
+    }
+
+    /**
+     * Length of the run in milliseconds
+     */
+    public void setDuration(long duration) {
+        this.mDuration = duration;
+    }
+
+    /**
+     * Milliseconds after which every client disconnects and connects again, 0 for no churn
+     */
+    public void setReconnectInterval(long reconnectInterval) {
+        this.mReconnectInterval = reconnectInterval;
+    }
+
+    /**
+     * Number of clients that pause after reading each echoed message
+     *
+     * @param slowReaders Number of slow clients
+     * @param readDelay   Milliseconds a slow client pauses after each message
+     */
+    public void setSlowReaders(int slowReaders, long readDelay) {
+        this.mSlowReaders = slowReaders;
+        this.mSlowReadDelay = readDelay;
+    }
+
+    /**
+     * Bytes buffered in each direction of a loopback connection
+     */
+    public void setPipeCapacity(int pipeCapacity) {
+        this.mPipeCapacity = pipeCapacity;
+    }
+
+    /**
+     * Runs the load and blocks until it is over
+     */
+    public LoadReport run() throws InterruptedException {
+        mSent.set(0);
+        mReceived.set(0);
+        mConnects.set(0);
+        mConnectFailures.set(0);
+        mLatencies.clear();
+
+        LoopbackTransport transport = new LoopbackTransport(mPipeCapacity);
+        BluetoothServer server = new BluetoothServer(transport);
+        server.addService(SERVICE, SERVICE_UUID, new OnBTServiceListener() {
+            public void onServiceConnected(BluetoothServerSession session) {
+            }
+
+            public void onServiceConnectionLost(BluetoothServerSession session) {
+            }
+
+            public void onServiceDataReceived(BluetoothServerSession session, int length,
+                                              byte[] data) {
+                session.write(data, 0, length);
+            }
+        });
+        server.start(false, true);
+
+        long start = System.nanoTime();
+        long deadline = start + mDuration * 1000000L;
+        Sampler sampler = new Sampler(server);
+        sampler.start();
+
+        List<VirtualClient> clients = new ArrayList<VirtualClient>();
+        for (int i = 0; i < mClients; i++) {
+            VirtualClient client = new VirtualClient(i, transport, deadline, i < mSlowReaders);
+            clients.add(client);
+            client.start();
+        }
+        for (VirtualClient client : clients)
+            client.join();
+
+        long elapsed = System.nanoTime() - start;
+        sampler.cancel();
+        sampler.join();
+        server.stop();
+
+        return report(elapsed, sampler);
+    }
+
+    private LoadReport report(long elapsedNanos, Sampler sampler) {
+        LoadReport report = new LoadReport();
+        report.clients = mClients;
+        report.messageSize = mMessageSize;
+        report.messageRate = mMessageRate;
+        report.durationMs = mDuration;
+        report.reconnectIntervalMs = mReconnectInterval;
+        report.slowReaders = mSlowReaders;
+
+        double seconds = elapsedNanos / 1e9;
+        report.messagesSent = mSent.get();
+        report.messagesReceived = mReceived.get();
+        report.messagesPerSecond = report.messagesReceived / seconds;
+        report.bytesPerSecond = report.messagesReceived * (double) mMessageSize / seconds;
+
+        // Merge the latencies of all clients
+        int count = 0;
+        for (long[] latencies : mLatencies)
+            count += (int) latencies[0];
+        long[] all = new long[count];
+        int position = 0;
+        for (long[] latencies : mLatencies) {
+            System.arraycopy(latencies, 1, all, position, (int) latencies[0]);
+            position += (int) latencies[0];
+        }
+        Arrays.sort(all);
+        report.latencyP50Us = percentile(all, 50) / 1000;
+        report.latencyP90Us = percentile(all, 90) / 1000;
+        report.latencyP99Us = percentile(all, 99) / 1000;
+        report.latencyMaxUs = count == 0 ? 0 : all[count - 1] / 1000;
+
+        report.connects = mConnects.get();
+        report.connectFailures = mConnectFailures.get();
+        report.peakSessions = sampler.mPeakSessions;
+        report.peakThreads = sampler.mPeakThreads;
+        report.peakHeapBytes = sampler.mPeakHeap;
+        return report;
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0)
+            return 0;
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * A simulated peer. Connects, sends at the configured rate on this thread while a second
+     * thread reads the echoes, and reconnects whenever the reconnect interval is over.
+     */
+    private class VirtualClient extends Thread {
+        private final LoopbackTransport mmTransport;
+        private final long mmDeadline;
+        private final boolean mmSlow;
+
+        // Latency samples, count in the first slot
+        private long[] mmLatencies = new long[64];
+
+        VirtualClient(int index, LoopbackTransport transport, long deadline, boolean slow) {
+            setName("VirtualClient" + index);
+            mmTransport = transport;
+            mmDeadline = deadline;
+            mmSlow = slow;
+        }
+
+        public void run() {
+            byte[] message = new byte[mMessageSize];
+            long interval = 1000000000L / mMessageRate;
+
+            // Paced across sessions, so churn does not change the send rate
+            long next = System.nanoTime();
+
+            while (next < mmDeadline) {
+                BluetoothTransport.Socket socket = connect();
+                if (socket == null)
+                    break;
+
+                ReadThread reader = new ReadThread(socket);
+                reader.start();
+
+                long sessionEnd = mmDeadline;
+                if (mReconnectInterval > 0)
+                    sessionEnd = Math.min(mmDeadline,
+                            System.nanoTime() + mReconnectInterval * 1000000L);
+
+                try {
+                    OutputStream out = socket.getOutputStream();
+                    while (next < sessionEnd) {
+                        long wait = next - System.nanoTime();
+                        if (wait > 0)
+                            Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+
+                        Frames.putLong(message, 0, System.nanoTime());
+                        out.write(message);
+                        mSent.incrementAndGet();
+                        next += interval;
+                    }
+                } catch (IOException e) {
+                    Log.d(DEBUG_TAG, getName() + " write failed", e);
+                    next += interval;
+                } catch (InterruptedException e) {
+                    break;
+                } finally {
+                    close(socket);
+                }
+
+                try {
+                    reader.join();
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+
+            synchronized (mLatencies) {
+                mLatencies.add(mmLatencies);
+            }
+        }
+
+        private BluetoothTransport.Socket connect() {
+            while (System.nanoTime() < mmDeadline) {
+                try {
+                    BluetoothTransport.Socket socket = mmTransport.connect(SERVICE_UUID);
+                    mConnects.incrementAndGet();
+                    return socket;
+                } catch (IOException e) {
+                    // Listener may not be up yet
+                    mConnectFailures.incrementAndGet();
+                }
+                try {
+                    Thread.sleep(CONNECT_RETRY_DELAY);
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        private void close(BluetoothTransport.Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(DEBUG_TAG, "close() of client socket failed", e);
+            }
+        }
+
+        private void addLatency(long latency) {
+            int count = (int) mmLatencies[0];
+            if (count + 1 == mmLatencies.length)
+                mmLatencies = Arrays.copyOf(mmLatencies, mmLatencies.length * 2);
+            mmLatencies[count + 1] = latency;
+            mmLatencies[0] = count + 1;
+        }
+
+        /**
+         * Reads echoed messages until the socket is closed
+         */
+        private class ReadThread extends Thread {
+            private final BluetoothTransport.Socket mmSocket;
+
+            ReadThread(BluetoothTransport.Socket socket) {
+                setName(VirtualClient.this.getName() + "Reader");
+                mmSocket = socket;
+            }
+
+            public void run() {
+                byte[] echo = new byte[mMessageSize];
+                try {
+                    DataInputStream in = new DataInputStream(mmSocket.getInputStream());
+                    while (true) {
+                        in.readFully(echo);
+                        long latency = System.nanoTime() - Frames.getLong(echo, 0);
+                        mReceived.incrementAndGet();
+                        synchronized (VirtualClient.this) {
+                            addLatency(latency);
+                        }
+                        if (mmSlow)
+                            Thread.sleep(mSlowReadDelay);
+                    }
+                } catch (IOException e) {
+                    // Socket closed by the writer or the server
+                } catch (InterruptedException e) {
+                    close(mmSocket);
+                }
+            }
+        }
+    }
+
+    /**
+     * Samples thread count, heap usage and open sessions while the load runs
+     */
+    private static class Sampler extends Thread {
+        private final BluetoothServer mmServer;
+        private volatile boolean mmCancelled;
+        int mPeakSessions;
+        int mPeakThreads;
+        long mPeakHeap;
+
+        Sampler(BluetoothServer server) {
+            setName("LoadSampler");
+            mmServer = server;
+        }
+
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+            while (!mmCancelled) {
+                mPeakSessions = Math.max(mPeakSessions, mmServer.getSessions().size());
+                mPeakThreads = Math.max(mPeakThreads, Thread.activeCount());
+                mPeakHeap = Math.max(mPeakHeap, runtime.totalMemory() - runtime.freeMemory());
+                try {
+                    Thread.sleep(SAMPLE_INTERVAL);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+
+        public void cancel() {
+            mmCancelled = true;
+            interrupt();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package io.pkp.androidbluetooth;
+
+import android.os.Bundle;
+import android.test.InstrumentationTestCase;
+import android.test.InstrumentationTestRunner;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Runs the {@link LoadGenerator} for CI trend tracking:
+ * <p/>
+ * ./gradlew :androidbluetooth:connectedAndroidTest
+ * <p/>
+ * The report is logged as a single JSON line with the tag LoadReport, and written to
+ * loadgen-report.json in the files directory of the test app. Instrumentation arguments
+ * override the defaults, e.g. -Pandroid.testInstrumentationRunnerArguments.clients=300. The
+ * arguments are clients, messageSize, messageRate, durationMs, reconnectIntervalMs,
+ * slowReaders and pipeCapacity.
+ */
+public class LoadGeneratorTest extends InstrumentationTestCase {
+    static final String REPORT_TAG = "LoadReport";
+    static final String REPORT_FILE = "loadgen-report.json";
+
+    public void testLoad() throws Exception {
+        Bundle arguments = ((InstrumentationTestRunner) getInstrumentation()).getArguments();
+
+        LoadGenerator generator = new LoadGenerator();
+        generator.setClients(getInt(arguments, "clients", 100));
+        generator.setMessageSize(getInt(arguments, "messageSize", 64));
+        generator.setMessageRate(getInt(arguments, "messageRate", 10));
+        generator.setDuration(getInt(arguments, "durationMs", 10000));
+        generator.setReconnectInterval(getInt(arguments, "reconnectIntervalMs", 0));
+        generator.setSlowReaders(getInt(arguments, "slowReaders", 0), 50);
+        generator.setPipeCapacity(getInt(arguments, "pipeCapacity", 4096));
+
+        LoadReport report = generator.run();
+        String json = report.toJson();
+        Log.i(REPORT_TAG, json);
+        writeReport(json);
+
+        assertTrue("no message made the round trip", report.messagesReceived > 0);
+    }
+
+    private void writeReport(String json) throws IOException {
+        File file = new File(getInstrumentation().getContext().getFilesDir(), REPORT_FILE);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write((json + "\n").getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int getInt(Bundle arguments, String key, int defaultValue) {
+        String value = arguments != null ? arguments.getString(key) : null;
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+}
@@ -0,0 +1,67 @@
+package io.pkp.androidbluetooth;
+
+import java.util.Locale;
+
+/**
+ * Results of a {@link LoadGenerator} run. Latencies are round trips through the server in
+ * microseconds, throughput counts the echoed messages that reached the clients.
+ */
+public class LoadReport {
+
+    // Configuration of the run
+    public int clients;
+    public int messageSize;
+    public int messageRate;
+    public long durationMs;
+    public long reconnectIntervalMs;
+    public int slowReaders;
+
+    // Traffic
+    public long messagesSent;
+    public long messagesReceived;
+    public double messagesPerSecond;
+    public double bytesPerSecond;
+
+    // Round trip latency
+    public long latencyP50Us;
+    public long latencyP90Us;
+    public long latencyP99Us;
+    public long latencyMaxUs;
+
+    // Connections
+    public long connects;
+    public long connectFailures;
+    public int peakSessions;
+
+    // Resources
+    public int peakThreads;
+    public long peakHeapBytes;
+
+    /**
+     * A single line JSON object, for CI trend tracking
+     */
+    public String toJson() {
+        return String.format(Locale.US, "{"
+                        + "\"clients\":%d,\"messageSize\":%d,\"messageRate\":%d,\"durationMs\":%d,"
+                        + "\"reconnectIntervalMs\":%d,\"slowReaders\":%d,"
+                        + "\"messagesSent\":%d,\"messagesReceived\":%d,"
+                        + "\"messagesPerSecond\":%.1f,\"bytesPerSecond\":%.1f,"
+                        + "\"latencyP50Us\":%d,\"latencyP90Us\":%d,\"latencyP99Us\":%d,"
+                        + "\"latencyMaxUs\":%d,"
+                        + "\"connects\":%d,\"connectFailures\":%d,\"peakSessions\":%d,"
+                        + "\"peakThreads\":%d,\"peakHeapBytes\":%d}",
+                clients, messageSize, messageRate, durationMs,
+                reconnectIntervalMs, slowReaders,
+                messagesSent, messagesReceived,
+                messagesPerSecond, bytesPerSecond,
+                latencyP50Us, latencyP90Us, latencyP99Us,
+                latencyMaxUs,
+                connects, connectFailures, peakSessions,
+                peakThreads, peakHeapBytes);
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+}
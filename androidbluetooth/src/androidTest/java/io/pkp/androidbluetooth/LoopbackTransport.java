@@ -0,0 +1,292 @@
+package io.pkp.androidbluetooth;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * In-memory stand-in for the bluetooth adapter. Clients in the same process reach a listening
+ * socket with {@link #connect(UUID)}. Every direction of a connection is a bounded pipe, so a
+ * peer that reads slowly blocks the writer once the pipe is full, much like a full RFCOMM buffer.
+ * <p/>
+ * Secure and insecure listeners are not told apart and sockets have no remote device.
+ */
+public class LoopbackTransport implements BluetoothTransport {
+
+    // Member fields
+    final Map<UUID, Listener> mListeners = new HashMap<UUID, Listener>();
+    final int mPipeCapacity;
+
+    /**
+     * @param pipeCapacity Bytes buffered in each direction of a connection
+     */
+    public LoopbackTransport(int pipeCapacity) {
+        this.mPipeCapacity = pipeCapacity;
+    }
+
+    @Override
+    public ServerSocket listen(String name, UUID uuid, boolean secure) throws IOException {
+        synchronized (mListeners) {
+            Listener listener = mListeners.get(uuid);
+            if (listener == null) {
+                listener = new Listener(uuid);
+                mListeners.put(uuid, listener);
+            }
+            synchronized (listener) {
+                listener.mmListenerCount++;
+            }
+            return new LoopbackServerSocket(listener);
+        }
+    }
+
+    @Override
+    public boolean usesRadio() {
+        return false;
+    }
+
+    /**
+     * Connects to a listening socket with the given UUID
+     *
+     * @throws IOException If nothing is listening on the UUID
+     */
+    public Socket connect(UUID uuid) throws IOException {
+        Listener listener;
+        synchronized (mListeners) {
+            listener = mListeners.get(uuid);
+        }
+        if (listener == null)
+            throw new IOException("connection refused, no listener for " + uuid);
+
+        Pipe toServer = new Pipe(mPipeCapacity);
+        Pipe toClient = new Pipe(mPipeCapacity);
+        listener.enqueue(new LoopbackSocket(toServer, toClient));
+        return new LoopbackSocket(toClient, toServer);
+    }
+
+    /**
+     * Pending connections of a UUID, shared by the secure and insecure listeners
+     */
+    private class Listener {
+        private final UUID mmUuid;
+        private final LinkedList<Socket> mmPending = new LinkedList<Socket>();
+        private int mmListenerCount;
+
+        Listener(UUID uuid) {
+            mmUuid = uuid;
+        }
+
+        synchronized void enqueue(Socket socket) throws IOException {
+            if (mmListenerCount == 0)
+                throw new IOException("connection refused, listener closed");
+            mmPending.add(socket);
+            notify();
+        }
+
+        synchronized Socket accept(LoopbackServerSocket serverSocket) throws IOException {
+            while (mmPending.isEmpty()) {
+                if (serverSocket.mmClosed)
+                    throw new IOException("listener closed");
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("accept interrupted");
+                }
+            }
+            return mmPending.removeFirst();
+        }
+
+        /**
+         * Drops one listener, the UUID stops accepting with the last one
+         */
+        void close(LoopbackServerSocket serverSocket) throws IOException {
+            synchronized (mListeners) {
+                synchronized (this) {
+                    if (serverSocket.mmClosed)
+                        return;
+                    serverSocket.mmClosed = true;
+                    mmListenerCount--;
+                    if (mmListenerCount == 0) {
+                        mListeners.remove(mmUuid);
+                        for (Socket socket : mmPending)
+                            socket.close();
+                        mmPending.clear();
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * The handle of one listen() call. Closing it twice drops its listener only once.
+     */
+    private class LoopbackServerSocket implements ServerSocket {
+        private final Listener mmListener;
+
+        // Guarded by mmListener
+        private boolean mmClosed;
+
+        LoopbackServerSocket(Listener listener) {
+            mmListener = listener;
+        }
+
+        @Override
+        public Socket accept() throws IOException {
+            return mmListener.accept(this);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmListener.close(this);
+        }
+    }
+
+    /**
+     * One end of a connection
+     */
+    private static class LoopbackSocket implements Socket {
+        private final Pipe mmIn;
+        private final Pipe mmOut;
+
+        LoopbackSocket(Pipe in, Pipe out) {
+            mmIn = in;
+            mmOut = out;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mmIn.mInputStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mmOut.mOutputStream;
+        }
+
+        @Override
+        public BluetoothDevice getRemoteDevice() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            mmIn.close();
+            mmOut.close();
+        }
+    }
+
+    /**
+     * A bounded ring buffer with a blocking stream on each side. Closing it wakes up both sides,
+     * the reader gets the remaining bytes and then end of stream, the writer an IOException.
+     */
+    private static class Pipe {
+        private final byte[] mmBuffer;
+        private int mmHead;
+        private int mmSize;
+        private boolean mmClosed;
+
+        final InputStream mInputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return mmSize;
+                }
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream mOutputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                Pipe.this.write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        Pipe(int capacity) {
+            mmBuffer = new byte[capacity];
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            while (mmSize == 0) {
+                if (mmClosed)
+                    return -1;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("read interrupted");
+                }
+            }
+
+            int count = Math.min(len, mmSize);
+            int first = Math.min(count, mmBuffer.length - mmHead);
+            System.arraycopy(mmBuffer, mmHead, b, off, first);
+            System.arraycopy(mmBuffer, 0, b, off + first, count - first);
+            mmHead = (mmHead + count) % mmBuffer.length;
+            mmSize -= count;
+            notifyAll();
+            return count;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while (mmSize == mmBuffer.length && !mmClosed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new IOException("write interrupted");
+                    }
+                }
+                if (mmClosed)
+                    throw new IOException("pipe closed");
+
+                int tail = (mmHead + mmSize) % mmBuffer.length;
+                int count = Math.min(len, mmBuffer.length - mmSize);
+                int first = Math.min(count, mmBuffer.length - tail);
+                System.arraycopy(b, off, mmBuffer, tail, first);
+                System.arraycopy(b, off + first, mmBuffer, 0, count - first);
+                mmSize += count;
+                off += count;
+                len -= count;
+                notifyAll();
+            }
+        }
+
+        synchronized void close() {
+            mmClosed = true;
+            notifyAll();
+        }
+    }
+}
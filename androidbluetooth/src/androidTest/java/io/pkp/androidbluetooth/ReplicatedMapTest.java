@@ -0,0 +1,347 @@
+package io.pkp.androidbluetooth;
+
+import android.test.InstrumentationTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Wire format and merging of {@link ReplicatedMap}. The sync messages of two maps are handed
+ * over in this process, no bluetooth is involved.
+ */
+public class ReplicatedMapTest extends InstrumentationTestCase {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long COALESCE_WINDOW = 10;
+    private static final long TIMEOUT = 5000;
+    private static final String UNICODE_KEY = "\u00fcnicode \u2713";
+
+    FakeCommunication mA;
+    FakeCommunication mB;
+    ReplicatedMap mMapA;
+    ReplicatedMap mMapB;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mA = new FakeCommunication();
+        mB = new FakeCommunication();
+        mA.mPeer = mB;
+        mB.mPeer = mA;
+        mMapA = mA.enableReplicatedMap(COALESCE_WINDOW);
+        mMapB = mB.enableReplicatedMap(COALESCE_WINDOW);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mMapA.close();
+        mMapB.close();
+        super.tearDown();
+    }
+
+    public void testDeltaRoundTrip() throws Exception {
+        mA.mRecording = true;
+        mB.mRecording = true;
+        mMapA.put("plain", "value".getBytes(UTF_8));
+        mMapA.put("empty", new byte[0]);
+        mMapA.put(UNICODE_KEY, new byte[]{0, -1, 127, -128});
+        mMapA.put("removed", new byte[]{1});
+        mMapA.remove("removed");
+        connect();
+
+        // The vector of the empty map makes A send all its entries, the removed one included
+        waitForRecorded(mB, 1);
+        for (byte[] message : mB.takeRecorded())
+            mMapA.onMessage(message, message.length);
+        waitForRecorded(mA, 1 + 4);
+        for (byte[] message : mA.takeRecorded())
+            mMapB.onMessage(message, message.length);
+
+        assertEquals("value", new String(mMapB.get("plain"), UTF_8));
+        assertEquals(0, mMapB.get("empty").length);
+        assertTrue(Arrays.equals(new byte[]{0, -1, 127, -128}, mMapB.get(UNICODE_KEY)));
+        assertNull(mMapB.get("removed"));
+        assertEquals(3, mMapB.snapshot().size());
+        synchronized (mMapB) {
+            assertEquals(mMapA.mVector, mMapB.mVector);
+        }
+    }
+
+    public void testMalformedMessagesChangeNothing() throws Exception {
+        List<byte[]> messages = new ArrayList<byte[]>();
+        messages.add(new byte[]{ReplicatedMap.MSG_DELTA});
+        messages.add(delta(-1, entry("k", new byte[]{1}, 1)));
+        messages.add(delta(Integer.MAX_VALUE, entry("k", new byte[]{1}, 1)));
+        messages.add(delta(2, entry("k", new byte[]{1}, 1)));
+        messages.add(delta(1, entry("k", new byte[]{1}, 1000)));
+        messages.add(delta(1, entry("k", new byte[]{1}, -2)));
+        messages.add(delta(1, entry("k", new byte[]{1}, Integer.MIN_VALUE)));
+
+        // Key length 0xffff with only a few bytes behind it
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(0xffff);
+        out.write("key".getBytes(UTF_8));
+        messages.add(delta(1, bytes.toByteArray()));
+
+        // A valid entry followed by a truncated one, neither may be applied
+        byte[] valid = entry("good", new byte[]{1}, 1);
+        byte[] truncated = entry("bad", new byte[]{1, 2, 3}, 3);
+        messages.add(delta(2, concat(valid, Arrays.copyOf(truncated, truncated.length - 2))));
+
+        bytes = new ByteArrayOutputStream();
+        out = new DataOutputStream(bytes);
+        out.writeByte(ReplicatedMap.MSG_VECTOR);
+        out.writeInt(Integer.MAX_VALUE);
+        out.writeLong(1);
+        messages.add(bytes.toByteArray());
+
+        for (byte[] message : messages)
+            mMapB.onMessage(message, message.length);
+
+        assertTrue(mMapB.snapshot().isEmpty());
+        synchronized (mMapB) {
+            assertTrue(mMapB.mEntries.isEmpty());
+            assertTrue(mMapB.mVector.isEmpty());
+            assertTrue(mMapB.mDirty.isEmpty());
+        }
+    }
+
+    public void testConcurrentWritesConverge() throws Exception {
+        // Written on both sides while apart, the higher version wins on both once connected
+        mMapA.put("key", new byte[]{1});
+        mMapB.put("other", new byte[]{0});
+        mMapB.put("key", new byte[]{2});
+        connect();
+        waitForSameValue("key");
+        assertTrue(Arrays.equals(new byte[]{2}, mMapA.get("key")));
+
+        // Written on both sides at once while connected
+        Thread writerA = new WriterThread(mMapA, (byte) 'a');
+        Thread writerB = new WriterThread(mMapB, (byte) 'b');
+        writerA.start();
+        writerB.start();
+        writerA.join();
+        writerB.join();
+        waitForSameValue("key");
+        waitForIdle();
+
+        synchronized (mMapA) {
+            synchronized (mMapB) {
+                ReplicatedMap.Entry a = mMapA.mEntries.get("key");
+                ReplicatedMap.Entry b = mMapB.mEntries.get("key");
+                assertEquals(a.mVersion, b.mVersion);
+                assertEquals(a.mOrigin, b.mOrigin);
+            }
+        }
+    }
+
+    public void testResyncSendsOnlyUnseenEntries() throws Exception {
+        for (int i = 0; i < 10; i++)
+            mMapA.put("key" + i, new byte[]{(byte) i});
+        connect();
+        waitForSize(mMapB, 10);
+        waitForIdle();
+
+        // In sync, only vectors travel
+        long sentA = mMapA.getEntriesSent();
+        long sentB = mMapB.getEntriesSent();
+        disconnect();
+        connect();
+        waitForIdle();
+        assertEquals(sentA, mMapA.getEntriesSent());
+        assertEquals(sentB, mMapB.getEntriesSent());
+
+        // One changed and one new entry while apart
+        disconnect();
+        mMapA.put("key3", new byte[]{33});
+        mMapA.put("key10", new byte[]{10});
+        connect();
+        waitForSize(mMapB, 11);
+        waitForIdle();
+        assertEquals(sentA + 2, mMapA.getEntriesSent());
+        assertEquals(sentB, mMapB.getEntriesSent());
+        assertTrue(Arrays.equals(new byte[]{33}, mMapB.get("key3")));
+    }
+
+    /**
+     * Brings both maps up so that neither reads a message before it is up itself, like the
+     * reading thread of a connection does
+     */
+    private void connect() {
+        mA.mUp = true;
+        mB.mUp = true;
+        synchronized (mMapB) {
+            mMapA.linkUp();
+            mMapB.linkUp();
+        }
+    }
+
+    private void disconnect() {
+        mA.mUp = false;
+        mB.mUp = false;
+        mMapA.linkDown();
+        mMapB.linkDown();
+    }
+
+    private void waitForSameValue(final String key) throws InterruptedException {
+        waitFor("values differ", new Condition() {
+            public boolean holds() {
+                return Arrays.equals(mMapA.get(key), mMapB.get(key));
+            }
+        });
+    }
+
+    private void waitForSize(final ReplicatedMap map, final int size)
+            throws InterruptedException {
+        waitFor("entries missing", new Condition() {
+            public boolean holds() {
+                return map.snapshot().size() == size;
+            }
+        });
+    }
+
+    /**
+     * Waits until neither map has anything left to send, then a little longer for messages on
+     * their way
+     */
+    private void waitForIdle() throws InterruptedException {
+        waitFor("still syncing", new Condition() {
+            public boolean holds() {
+                return isIdle(mMapA) && isIdle(mMapB);
+            }
+        });
+        Thread.sleep(100);
+    }
+
+    private static void waitForRecorded(final FakeCommunication communication, final int entries)
+            throws InterruptedException {
+        waitFor("nothing sent", new Condition() {
+            public boolean holds() {
+                return communication.recordedEntries() == entries;
+            }
+        });
+    }
+
+    private static boolean isIdle(ReplicatedMap map) {
+        synchronized (map) {
+            return !map.mSendVector && map.mDirty.isEmpty();
+        }
+    }
+
+    private static void waitFor(String message, Condition condition)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline)
+                fail(message);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * An encoded delta entry, with the given value length in its header
+     */
+    private static byte[] entry(String key, byte[] value, int valueLength) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[] keyBytes = key.getBytes(UTF_8);
+        out.writeShort(keyBytes.length);
+        out.write(keyBytes);
+        out.writeLong(1);
+        out.writeLong(42);
+        out.writeInt(valueLength);
+        out.write(value);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] delta(int count, byte[] body) {
+        byte[] message = new byte[1 + 4 + body.length];
+        message[0] = ReplicatedMap.MSG_DELTA;
+        Frames.putInt(message, 1, count);
+        System.arraycopy(body, 0, message, 5, body.length);
+        return message;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    /**
+     * Puts to the same key as fast as it can
+     */
+    private static class WriterThread extends Thread {
+        private final ReplicatedMap mmMap;
+        private final byte mmTag;
+
+        WriterThread(ReplicatedMap map, byte tag) {
+            mmMap = map;
+            mmTag = tag;
+        }
+
+        public void run() {
+            for (int i = 0; i < 200; i++)
+                mmMap.put("key", new byte[]{mmTag, (byte) i});
+        }
+    }
+
+    /**
+     * Hands sync messages straight to the map of the peer, or records them
+     */
+    private static class FakeCommunication extends BluetoothCommunication {
+        FakeCommunication mPeer;
+        volatile boolean mUp;
+        volatile boolean mRecording;
+        final List<byte[]> mRecorded = new ArrayList<byte[]>();
+
+        FakeCommunication() {
+            super(null);
+        }
+
+        @Override
+        boolean writeMessage(int type, byte[] buffer, int offset, int length) {
+            byte[] message = Arrays.copyOfRange(buffer, offset, offset + length);
+            if (mRecording) {
+                synchronized (mRecorded) {
+                    mRecorded.add(message);
+                }
+                return true;
+            }
+            if (!mUp)
+                return false;
+            mPeer.getReplicatedMap().onMessage(message, message.length);
+            return true;
+        }
+
+        /**
+         * Messages recorded so far, a vector counts as one
+         */
+        int recordedEntries() {
+            int entries = 0;
+            synchronized (mRecorded) {
+                for (byte[] message : mRecorded)
+                    entries += message[0] == ReplicatedMap.MSG_DELTA
+                            ? Frames.getInt(message, 1) : 1;
+            }
+            return entries;
+        }
+
+        List<byte[]> takeRecorded() {
+            synchronized (mRecorded) {
+                List<byte[]> recorded = new ArrayList<byte[]>(mRecorded);
+                mRecorded.clear();
+                return recorded;
+            }
+        }
+    }
+}
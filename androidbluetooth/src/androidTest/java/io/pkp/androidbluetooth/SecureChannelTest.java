@@ -0,0 +1,227 @@
+package io.pkp.androidbluetooth;
+
+import android.test.InstrumentationTestCase;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Handshakes of {@link SecureChannel} between two channels in this process. Frames are handed
+ * over by the test, so it can also drop or forge them.
+ */
+public class SecureChannelTest extends InstrumentationTestCase {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String PEER = "peer";
+    private static final byte[] PRE_SHARED_KEY = "pre-shared".getBytes(UTF_8);
+
+    SessionTicketCache mClientTickets;
+    SessionTicketCache mServerTickets;
+    SecureChannel mClient;
+    SecureChannel mServer;
+    RecordingLink mToServer;
+    RecordingLink mToClient;
+
+    private void setUpChannels(byte[] preSharedKey) {
+        mClientTickets = new SessionTicketCache();
+        mServerTickets = new SessionTicketCache();
+        mClient = new SecureChannel(mClientTickets, preSharedKey);
+        mServer = new SecureChannel(mServerTickets, preSharedKey);
+    }
+
+    public void testFullHandshake() throws Exception {
+        setUpChannels(null);
+        connect();
+        deliverHello();
+        deliverReply();
+
+        assertTrue(mClient.isEstablished());
+        assertTrue(mServer.isEstablished());
+        assertFalse(mClient.isResumed());
+        assertEquals("hello", open(mServer, seal(mClient, "hello")));
+        assertEquals("world", open(mClient, seal(mServer, "world")));
+    }
+
+    public void testResumedHandshakeAcceptsEarlyDataOnce() throws Exception {
+        setUpChannels(PRE_SHARED_KEY);
+        fullHandshake();
+
+        connect();
+        byte[] early = seal(mClient, "early");
+        deliverHello();
+        assertEquals("early", open(mServer, early));
+        deliverReply();
+
+        assertTrue(mClient.isResumed());
+        assertTrue(mServer.isResumed());
+        assertEquals("late", open(mClient, seal(mServer, "late")));
+        assertTrue(mToServer.mmSealed.isEmpty());
+    }
+
+    public void testRejectResendsEarlyDataWithPreSharedKey() throws Exception {
+        setUpChannels(PRE_SHARED_KEY);
+        fullHandshake();
+        mServerTickets.clear();
+
+        connect();
+        byte[] early = seal(mClient, "early");
+        deliverHello();
+        assertEquals(-1, mServer.open(early, 0, early.length));
+        deliverReply();
+        deliverHello();
+        deliverReply();
+
+        assertTrue(mClient.isEstablished());
+        assertFalse(mClient.isResumed());
+        assertEquals(1, mToServer.mmSealed.size());
+        assertEquals("early", open(mServer, mToServer.mmSealed.get(0)));
+    }
+
+    public void testRejectDropsEarlyDataWithoutPreSharedKey() throws Exception {
+        setUpChannels(null);
+        fullHandshake();
+        mServerTickets.clear();
+
+        connect();
+        seal(mClient, "early");
+        deliverHello();
+        deliverReply();
+        deliverHello();
+        deliverReply();
+
+        assertTrue(mClient.isEstablished());
+        assertTrue(mToServer.mmSealed.isEmpty());
+    }
+
+    public void testForgedRejectFails() throws Exception {
+        setUpChannels(PRE_SHARED_KEY);
+        fullHandshake();
+
+        connect();
+        seal(mClient, "early");
+        deliverHello();
+
+        // The resume reply is dropped and an unauthenticated reject sent instead
+        mToClient.takeFrame();
+        byte[] reject = new byte[]{SecureChannel.MODE_REJECT};
+        try {
+            mClient.onHelloReply(reject, reject.length);
+            fail("forged reject accepted");
+        } catch (GeneralSecurityException expected) {
+        }
+        assertTrue(mToServer.mmSealed.isEmpty());
+    }
+
+    public void testSecondHelloFails() throws Exception {
+        setUpChannels(null);
+        fullHandshake();
+
+        // The server of a resumed link must not take a full hello, that would replay early data
+        connect();
+        seal(mClient, "early");
+        deliverHello();
+        mClientTickets.clear();
+        SecureChannel other = new SecureChannel(mClientTickets, null);
+        other.start(mToServer, true, PEER);
+        try {
+            deliverHello();
+            fail("second hello accepted");
+        } catch (GeneralSecurityException expected) {
+        }
+    }
+
+    public void testOtherPreSharedKeyFails() throws Exception {
+        mClientTickets = new SessionTicketCache();
+        mServerTickets = new SessionTicketCache();
+        mClient = new SecureChannel(mClientTickets, PRE_SHARED_KEY);
+        mServer = new SecureChannel(mServerTickets, "other".getBytes(UTF_8));
+        fullHandshake();
+
+        byte[] sealed = seal(mClient, "hello");
+        try {
+            mServer.open(sealed, 0, sealed.length);
+            fail("opened with another pre-shared key");
+        } catch (GeneralSecurityException expected) {
+        }
+    }
+
+    private void connect() {
+        mToServer = new RecordingLink(mClient);
+        mToClient = new RecordingLink(mServer);
+        assertTrue(mServer.start(mToClient, false, null));
+        assertTrue(mClient.start(mToServer, true, PEER));
+    }
+
+    private void fullHandshake() throws GeneralSecurityException {
+        connect();
+        deliverHello();
+        deliverReply();
+        assertFalse(mClient.isResumed());
+    }
+
+    private void deliverHello() throws GeneralSecurityException {
+        byte[] hello = mToServer.takeFrame();
+        mServer.onHello(hello, hello.length);
+    }
+
+    private void deliverReply() throws GeneralSecurityException {
+        byte[] reply = mToClient.takeFrame();
+        mClient.onHelloReply(reply, reply.length);
+    }
+
+    private static byte[] seal(SecureChannel channel, String text)
+            throws GeneralSecurityException {
+        byte[] plain = text.getBytes(UTF_8);
+        byte[] buffer = Arrays.copyOf(plain, plain.length + SecureChannel.TAG_SIZE);
+        int length = channel.seal(buffer, 0, plain.length);
+        assertEquals(buffer.length, length);
+        return buffer;
+    }
+
+    private static String open(SecureChannel channel, byte[] sealed)
+            throws GeneralSecurityException {
+        int length = channel.open(sealed, 0, sealed.length);
+        assertTrue("no keys to open with", length >= 0);
+        return new String(sealed, 0, length, UTF_8);
+    }
+
+    /**
+     * Keeps the frames a channel writes, and seals resent data like the connection would
+     */
+    private static class RecordingLink implements SecureChannel.Link {
+        final SecureChannel mmChannel;
+        final List<byte[]> mmSealed = new ArrayList<byte[]>();
+        byte[] mmLastFrame;
+
+        RecordingLink(SecureChannel channel) {
+            mmChannel = channel;
+        }
+
+        byte[] takeFrame() {
+            assertNotNull("no frame written", mmLastFrame);
+            byte[] frame = mmLastFrame;
+            mmLastFrame = null;
+            return frame;
+        }
+
+        public boolean writeFrame(int type, byte[] buffer, int offset, int length) {
+            mmLastFrame = Arrays.copyOfRange(buffer, offset, offset + length);
+            return true;
+        }
+
+        public int writeSealed(byte[] buffer, int offset, int length) {
+            byte[] frame = Arrays.copyOf(Arrays.copyOfRange(buffer, offset, offset + length),
+                    length + SecureChannel.TAG_SIZE);
+            try {
+                if (mmChannel.seal(frame, 0, length) < 0)
+                    return SecureChannel.WRITE_NOT_READY;
+            } catch (GeneralSecurityException e) {
+                return SecureChannel.WRITE_FAILED;
+            }
+            mmSealed.add(frame);
+            return SecureChannel.WRITE_OK;
+        }
+    }
+}
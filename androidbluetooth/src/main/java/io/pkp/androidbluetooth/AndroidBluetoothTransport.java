@@ -0,0 +1,86 @@
+package io.pkp.androidbluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Transport over the default bluetooth adapter
+ */
+public class AndroidBluetoothTransport implements BluetoothTransport {
+
+    // Member fields
+    BluetoothAdapter mBluetoothAdapter;
+
+    public AndroidBluetoothTransport() {
+        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+    }
+
+    @Override
+    public ServerSocket listen(String name, UUID uuid, boolean secure) throws IOException {
+        BluetoothServerSocket serverSocket;
+        if (secure)
+            serverSocket = mBluetoothAdapter.listenUsingRfcommWithServiceRecord(name, uuid);
+        else
+            serverSocket = mBluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(name, uuid);
+        return new AndroidServerSocket(serverSocket);
+    }
+
+    @Override
+    public boolean usesRadio() {
+        return true;
+    }
+
+    private static class AndroidServerSocket implements ServerSocket {
+        private final BluetoothServerSocket mmServerSocket;
+
+        AndroidServerSocket(BluetoothServerSocket serverSocket) {
+            mmServerSocket = serverSocket;
+        }
+
+        @Override
+        public Socket accept() throws IOException {
+            BluetoothSocket socket = mmServerSocket.accept();
+            return socket == null ? null : new AndroidSocket(socket);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmServerSocket.close();
+        }
+    }
+
+    private static class AndroidSocket implements Socket {
+        private final BluetoothSocket mmSocket;
+
+        AndroidSocket(BluetoothSocket socket) {
+            mmSocket = socket;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        @Override
+        public BluetoothDevice getRemoteDevice() {
+            return mmSocket.getRemoteDevice();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmSocket.close();
+        }
+    }
+}
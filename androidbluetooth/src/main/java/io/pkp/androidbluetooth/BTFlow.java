@@ -0,0 +1,50 @@
+package io.pkp.androidbluetooth;
+
+/**
+ * The reactive streams interfaces, with the same methods and rules as java.util.concurrent.Flow.
+ * Flow only exists from API 30 on, these work on every API level this library supports. Adapting
+ * either way takes a one line wrapper per interface.
+ */
+public final class BTFlow {
+
+    private BTFlow() {
+    }
+
+    /**
+     * A source of items, which are only sent as far as its subscriber requested them
+     */
+    public interface Publisher<T> {
+
+        public void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * Receives items, calls to one subscriber never overlap
+     */
+    public interface Subscriber<T> {
+
+        public void onSubscribe(Subscription subscription);
+
+        public void onNext(T item);
+
+        public void onError(Throwable throwable);
+
+        public void onComplete();
+    }
+
+    /**
+     * Link between a publisher and a subscriber
+     */
+    public interface Subscription {
+
+        /**
+         * Allows n more items to be sent. Demand adds up, n must be positive.
+         */
+        public void request(long n);
+
+        /**
+         * Stops the items, some may still arrive
+         */
+        public void cancel();
+    }
+}
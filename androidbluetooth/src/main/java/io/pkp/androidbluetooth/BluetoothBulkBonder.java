@@ -0,0 +1,322 @@
+package io.pkp.androidbluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bonds with a list of bluetooth devices. A limited number of bonds run in parallel, all of them
+ * sharing one BroadcastReceiver. Every device gets its own timeout and a number of retries.
+ * <p/>
+ * All callbacks are delivered on the main thread.
+ */
+public class BluetoothBulkBonder {
+    final String DEBUG_TAG = this.getClass().getName();
+
+    // Received from caller
+    Context mContext;
+
+    // Member fields
+    Handler mHandler;
+    BroadcastReceiver mBondingReceiver;
+    LinkedList<BondJob> mPending = new LinkedList<BondJob>();
+    Map<String, BondJob> mActive = new HashMap<String, BondJob>();
+    int mTotal;
+    int mBonded;
+    int mFailed;
+
+    // Configuration
+    int mConcurrency = Params.BULK_BOND_CONCURRENCY;
+    int mRetries = Params.BULK_BOND_RETRIES;
+    long mTimeout = Params.BULK_BOND_TIMEOUT;
+    long mRetryDelay = Params.BULK_BOND_RETRY_DELAY;
+
+    OnBTBulkBondListener mOnBTBulkBondListener;
+
+    public BluetoothBulkBonder(Context context) {
+        this.mContext = context;
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Number of bonds that may be in progress at the same time
+     */
+    public synchronized void setConcurrency(int concurrency) {
+        this.mConcurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Number of extra attempts for a device after its first attempt failed or timed out
+     */
+    public synchronized void setRetries(int retries) {
+        this.mRetries = Math.max(0, retries);
+    }
+
+    /**
+     * Time in milliseconds after which a single bond attempt is given up
+     */
+    public synchronized void setTimeout(long timeout) {
+        this.mTimeout = timeout;
+    }
+
+    /**
+     * Base delay in milliseconds before a retry, multiplied by the attempts made so far
+     */
+    public synchronized void setRetryDelay(long retryDelay) {
+        this.mRetryDelay = retryDelay;
+    }
+
+    /**
+     * Starts bonding with the given devices. Devices which are already bonded are reported as
+     * bonded right away. Any batch still in progress is cancelled first.
+     *
+     * @param devices              Devices to bond with
+     * @param onBTBulkBondListener Listener to receive callbacks for actions
+     */
+    public synchronized void bond(List<BluetoothDevice> devices,
+                                  OnBTBulkBondListener onBTBulkBondListener) {
+        cancel();
+        this.mOnBTBulkBondListener = onBTBulkBondListener;
+
+        mTotal = devices.size();
+        mBonded = 0;
+        mFailed = 0;
+        for (BluetoothDevice device : devices)
+            mPending.add(new BondJob(device));
+
+        if (mTotal == 0) {
+            if (mOnBTBulkBondListener != null)
+                mOnBTBulkBondListener.onBulkBondComplete(0, 0);
+            return;
+        }
+
+        registerReceiver();
+        startPending();
+    }
+
+    /**
+     * Stops the batch. Bonds which are already in progress are left to the system.
+     */
+    public synchronized void cancel() {
+        for (BondJob job : mActive.values())
+            mHandler.removeCallbacks(job);
+        mActive.clear();
+        mPending.clear();
+        unregisterReceiver();
+    }
+
+    /**
+     * Fills the free slots with devices waiting to be bonded
+     */
+    private void startPending() {
+        while (mActive.size() < mConcurrency && !mPending.isEmpty()) {
+            BondJob job = mPending.removeFirst();
+            job.mStartTime = SystemClock.elapsedRealtime();
+
+            if (job.mDevice.getBondState() == BluetoothDevice.BOND_BONDED) {
+                finish(job, true);
+                continue;
+            }
+
+            mActive.put(job.mDevice.getAddress(), job);
+            attempt(job);
+        }
+
+        if (mActive.isEmpty() && mPending.isEmpty()) {
+            unregisterReceiver();
+            if (mOnBTBulkBondListener != null)
+                mOnBTBulkBondListener.onBulkBondComplete(mBonded, mFailed);
+        }
+    }
+
+    /**
+     * Makes one bond attempt and arms its timeout
+     */
+    private void attempt(BondJob job) {
+        job.mAttempts++;
+        Log.d(DEBUG_TAG, "bond attempt " + job.mAttempts + " with " + job.mDevice.getAddress());
+
+        // A refused attempt is handled on the next turn, not inside startPending()
+        if (!job.mDevice.createBond()) {
+            schedule(job, BondJob.REFUSED, 0);
+            return;
+        }
+        schedule(job, BondJob.WAITING, mTimeout);
+    }
+
+    /**
+     * Either retries the device after a delay or gives up on it
+     */
+    private void attemptFailed(BondJob job) {
+        if (job.mAttempts <= mRetries) {
+            schedule(job, BondJob.BACKOFF, mRetryDelay * job.mAttempts);
+            return;
+        }
+        job.mState = BondJob.IDLE;
+        mHandler.removeCallbacks(job);
+
+        mActive.remove(job.mDevice.getAddress());
+        finish(job, false);
+        startPending();
+    }
+
+    /**
+     * Moves the job into a state that ends after delay, unless a bond state change comes first
+     */
+    private void schedule(BondJob job, int state, long delay) {
+        mHandler.removeCallbacks(job);
+        job.mState = state;
+        mHandler.postDelayed(job, delay);
+    }
+
+    private void finish(BondJob job, boolean bonded) {
+        long duration = SystemClock.elapsedRealtime() - job.mStartTime;
+        if (bonded)
+            mBonded++;
+        else
+            mFailed++;
+
+        if (mOnBTBulkBondListener != null) {
+            if (bonded)
+                mOnBTBulkBondListener.onDeviceBonded(job.mDevice, job.mAttempts, duration);
+            else
+                mOnBTBulkBondListener.onDeviceBondFailed(job.mDevice, job.mAttempts, duration);
+            mOnBTBulkBondListener.onBulkBondProgress(mBonded + mFailed, mTotal);
+        }
+    }
+
+    private synchronized void onBondStateChange(BluetoothDevice device, int currState,
+                                                int prevState) {
+        BondJob job = mActive.get(device.getAddress());
+        if (job == null)
+            return;
+
+        if (mOnBTBulkBondListener != null)
+            mOnBTBulkBondListener.onBondStateChange(device, currState, prevState);
+
+        if (currState == BluetoothDevice.BOND_BONDED) {
+            mHandler.removeCallbacks(job);
+            mActive.remove(device.getAddress());
+            finish(job, true);
+            startPending();
+        } else if (currState == BluetoothDevice.BOND_NONE
+                && (job.mState == BondJob.WAITING || job.mState == BondJob.CANCELLING)) {
+            // Either the attempt failed or the cancel of a timed out attempt is through
+            attemptFailed(job);
+        }
+    }
+
+    private synchronized void onJobDue(BondJob job) {
+        if (mActive.get(job.mDevice.getAddress()) != job)
+            return;
+
+        switch (job.mState) {
+            case BondJob.WAITING:
+                // Retry only once the cancel is through, the device is still bonding until then
+                Log.d(DEBUG_TAG, "bond attempt timed out with " + job.mDevice.getAddress());
+                schedule(job, BondJob.CANCELLING, mRetryDelay);
+                cancelBondProcess(job.mDevice);
+                break;
+            case BondJob.CANCELLING:
+                // No BOND_NONE came, retry anyway
+                attemptFailed(job);
+                break;
+            case BondJob.REFUSED:
+                attemptFailed(job);
+                break;
+            case BondJob.BACKOFF:
+                if (job.mDevice.getBondState() == BluetoothDevice.BOND_BONDING)
+                    schedule(job, BondJob.BACKOFF, mRetryDelay);
+                else
+                    attempt(job);
+                break;
+        }
+    }
+
+    /**
+     * Aborts a running bond. This uses a hack due to lack of relevant method in BluetoothDevice
+     * from Android
+     */
+    private void cancelBondProcess(BluetoothDevice device) {
+        try {
+            Method method = device.getClass().getMethod("cancelBondProcess");
+            method.invoke(device);
+        } catch (Exception e) {
+            Log.e(DEBUG_TAG, "cancelBondProcess() failed", e);
+        }
+    }
+
+    private void registerReceiver() {
+        if (mBondingReceiver != null)
+            return;
+
+        // Create a single BroadcastReceiver for BOND_STATE changes of all devices
+        mBondingReceiver = new BroadcastReceiver() {
+            public void onReceive(Context context, Intent intent) {
+                String action = intent.getAction();
+
+                // When device bond state changed
+                if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
+                    BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                    int currState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE,
+                            BluetoothDevice.ERROR);
+                    int prevState = intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE,
+                            BluetoothDevice.ERROR);
+                    onBondStateChange(device, currState, prevState);
+                }
+            }
+        };
+
+        // Register the BroadcastReceiver
+        IntentFilter filters = new IntentFilter();
+        filters.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+        mContext.registerReceiver(mBondingReceiver, filters);
+    }
+
+    private void unregisterReceiver() {
+        if (mBondingReceiver == null)
+            return;
+        try {
+            mContext.unregisterReceiver(mBondingReceiver);
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+        mBondingReceiver = null;
+    }
+
+    /**
+     * Bonding progress of a single device. Runs when its current state times out.
+     */
+    private class BondJob implements Runnable {
+        static final int IDLE = 0;       // Not started or finished
+        static final int WAITING = 1;    // Attempt running, runs out after the timeout
+        static final int CANCELLING = 2; // Timed out attempt being cancelled, waits for BOND_NONE
+        static final int BACKOFF = 3;    // Waiting before the next attempt
+        static final int REFUSED = 4;    // createBond() returned false, fails on the next turn
+
+        final BluetoothDevice mDevice;
+        long mStartTime;
+        int mAttempts;
+        int mState = IDLE;
+
+        BondJob(BluetoothDevice device) {
+            mDevice = device;
+        }
+
+        public void run() {
+            onJobDue(this);
+        }
+    }
+}
@@ -7,9 +7,13 @@ import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.util.Log;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Abstracts all Bluetooth Communication related work
@@ -26,6 +30,11 @@ public class BluetoothCommunication {
     ConnectThread mConnectThread;
     ConnectedThread mConnectedThread;
     int mState;
+    boolean mFramed;
+    boolean mFlowControl;
+    LinkProbe mLinkProbe;
+    SecureChannel mSecureChannel;
+    ReplicatedMap mReplicatedMap;
 
     // Callbacks
     OnBTClientListener mOnBTClientListener;
@@ -98,6 +107,124 @@ public class BluetoothCommunication {
         return mState;
     }
 
+    /**
+     * Measure round trip time and clock offset to the peer while connected, pinging every
+     * Params.LINK_PROBE_INTERVAL
+     *
+     * @see #enableLinkProbe(long, OnBTLinkProbeListener)
+     */
+    public LinkProbe enableLinkProbe(OnBTLinkProbeListener onBTLinkProbeListener) {
+        return enableLinkProbe(Params.LINK_PROBE_INTERVAL, onBTLinkProbeListener);
+    }
+
+    /**
+     * Measure round trip time and clock offset to the peer while connected. This switches the
+     * link to framed mode, so the peer must enable the probe too. Call this before connecting or
+     * starting the server.
+     *
+     * @param interval              Milliseconds between two pings
+     * @param onBTLinkProbeListener To send callbacks for every sample, may be null
+     * @return The probe, to query RTT and clock statistics from
+     */
+    public synchronized LinkProbe enableLinkProbe(long interval,
+                                                  OnBTLinkProbeListener onBTLinkProbeListener) {
+        if (mLinkProbe != null)
+            mLinkProbe.stop();
+        mLinkProbe = new LinkProbe(this, interval, onBTLinkProbeListener);
+        mFramed = true;
+        return mLinkProbe;
+    }
+
+    /**
+     * The link probe, or null if it was not enabled
+     */
+    public synchronized LinkProbe getLinkProbe() {
+        return mLinkProbe;
+    }
+
+    /**
+     * Encrypt all data on the link, see {@link SecureChannel}. Meant for insecure sockets, which
+     * connect much faster than secure ones. This switches the link to framed mode, so the peer
+     * must enable encryption too. Call this before connecting or starting the server.
+     *
+     * @param ticketCache  Session tickets to resume with, share one between connections to the
+     *                     same peers. May be null for a private cache.
+     * @param preSharedKey Secret known to both peers to authenticate the key exchange, may be null
+     * @return The channel, to check the state of the handshake
+     */
+    public synchronized SecureChannel enableEncryption(SessionTicketCache ticketCache,
+                                                       byte[] preSharedKey) {
+        if (mSecureChannel != null)
+            mSecureChannel.stop();
+        mSecureChannel = new SecureChannel(ticketCache, preSharedKey);
+        mFramed = true;
+        return mSecureChannel;
+    }
+
+    /**
+     * Share a key/value map with the peer, see {@link ReplicatedMap}. Changes on either side are
+     * sent as batched deltas while connected and merged again after a reconnect. This switches
+     * the link to framed mode, so the peer must enable the map too. Call this before connecting
+     * or starting the server.
+     *
+     * @param coalesceWindow Milliseconds local changes are collected before they are sent, see
+     *                       Params.REPLICATED_MAP_COALESCE_WINDOW
+     * @return The map, kept across connections
+     */
+    public synchronized ReplicatedMap enableReplicatedMap(long coalesceWindow) {
+        if (mReplicatedMap != null)
+            mReplicatedMap.close();
+        mReplicatedMap = new ReplicatedMap(this, coalesceWindow);
+        mFramed = true;
+        return mReplicatedMap;
+    }
+
+    /**
+     * The replicated map, or null if it was not enabled
+     */
+    public synchronized ReplicatedMap getReplicatedMap() {
+        return mReplicatedMap;
+    }
+
+    /**
+     * Let a subscriber control how fast data is read, see {@link InboundPublisher}. Received data
+     * is no longer passed to the data callbacks. Call this before connecting or starting the
+     * server, then subscribe to {@link #getInboundPublisher()} once connected.
+     */
+    public synchronized void enableFlowControl() {
+        mFlowControl = true;
+    }
+
+    /**
+     * Data received on the current connection, see {@link #enableFlowControl()}
+     *
+     * @return The publisher, null if not connected or flow control is not enabled
+     */
+    public synchronized BTFlow.Publisher<byte[]> getInboundPublisher() {
+        if (mState != STATE_CONNECTED || mConnectedThread == null)
+            return null;
+        return mConnectedThread.mmInboundPublisher;
+    }
+
+    /**
+     * A subscriber that writes every item to the current connection, as {@link #write(byte[])}
+     * would. It is cancelled when the connection ends.
+     *
+     * @return The subscriber, null if not connected
+     */
+    public synchronized BTFlow.Subscriber<byte[]> getOutboundSubscriber() {
+        if (mState != STATE_CONNECTED || mConnectedThread == null)
+            return null;
+        final ConnectedThread r = mConnectedThread;
+        OutboundSubscriber subscriber = new OutboundSubscriber(new OutboundSubscriber.Sink() {
+            public boolean write(byte[] data) {
+                return BluetoothCommunication.this.write(r, data);
+            }
+        }, Params.FLOW_OUTBOUND_WINDOW, mLinkProbe);
+        r.addOutboundSubscriber(subscriber);
+        return subscriber;
+    }
+
     /**
      * Start the ConnectThread to initiate a connection to a remote device.
      *
@@ -131,13 +258,22 @@ public class BluetoothCommunication {
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
+     * Start the ConnectedThread to begin managing a Bluetooth connection. On an encrypted link
+     * this side takes the client role of the handshake if a client listener is set.
      *
      * @param socket The BluetoothSocket on which the connection was made
      * @param device The BluetoothDevice that has been connected
      */
     public synchronized void connected(BluetoothSocket socket, BluetoothDevice
             device, final String socketType) {
+        connected(socket, device, socketType, mOnBTClientListener != null);
+    }
+
+    /**
+     * @param client True if this side initiated the connection, false if it was accepted
+     */
+    synchronized void connected(BluetoothSocket socket, BluetoothDevice
+            device, final String socketType, boolean client) {
         Log.d(DEBUG_TAG, "connected, Socket Type:" + socketType);
 
         // Cancel the thread that completed the connection
@@ -159,7 +295,7 @@ public class BluetoothCommunication {
         }
 
         // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket, socketType);
+        mConnectedThread = new ConnectedThread(socket, socketType, client);
         mConnectedThread.start();
 
         setState(STATE_CONNECTED);
@@ -209,7 +345,79 @@ public class BluetoothCommunication {
             r = mConnectedThread;
         }
         // Perform the write unsynchronized
-        r.write(out);
+        write(r, out);
+    }
+
+    /**
+     * Write on the given connection
+     *
+     * @return False if the write failed
+     */
+    private boolean write(ConnectedThread r, byte[] out) {
+        if (!mFramed)
+            return r.write(out);
+
+        // Split into frames the peer accepts
+        int offset = 0;
+        do {
+            int length = Math.min(out.length - offset, Frames.MAX_MESSAGE_SIZE);
+            if (!writeMessage(r, Frames.TYPE_DATA, out, offset, length))
+                return false;
+            offset += length;
+        } while (offset < out.length);
+        return true;
+    }
+
+    /**
+     * Write a single message to the connected device, sealed if the link is encrypted. Only
+     * valid on a framed link.
+     *
+     * @param length At most {@link Frames#MAX_MESSAGE_SIZE}
+     * @return False if not connected or the write failed
+     */
+    boolean writeMessage(int type, byte[] buffer, int offset, int length) {
+        ConnectedThread r;
+        synchronized (this) {
+            if (mState != STATE_CONNECTED) return false;
+            r = mConnectedThread;
+        }
+        return writeMessage(r, type, buffer, offset, length);
+    }
+
+    /**
+     * Write a message on the given connection, waiting for the handshake where needed
+     */
+    private boolean writeMessage(ConnectedThread r, int type, byte[] buffer, int offset,
+                                 int length) {
+        if (r.mmSecureChannel == null)
+            return r.writeFrame(type, buffer, offset, length);
+
+        while (true) {
+            int result = r.writeSealed(type, buffer, offset, length);
+            if (result != SecureChannel.WRITE_NOT_READY)
+                return result == SecureChannel.WRITE_OK;
+            if (!r.mmSecureChannel.awaitSendKeys(Params.SECURE_HANDSHAKE_TIMEOUT)) {
+                Log.e(DEBUG_TAG, "no keys to encrypt with, write dropped");
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Write a single message like {@link #writeMessage(int, byte[], int, int)}, but drop it
+     * instead of waiting while the handshake is not done. Safe to call from the reader thread.
+     *
+     * @return False if not connected, without keys or the write failed
+     */
+    boolean writeMessageNow(int type, byte[] buffer, int offset, int length) {
+        ConnectedThread r;
+        synchronized (this) {
+            if (mState != STATE_CONNECTED) return false;
+            r = mConnectedThread;
+        }
+        if (r.mmSecureChannel == null)
+            return r.writeFrame(type, buffer, offset, length);
+        return r.writeSealed(type, buffer, offset, length) == SecureChannel.WRITE_OK;
     }
 
     /**
@@ -258,8 +466,8 @@ public class BluetoothCommunication {
                     tmp = mBluetoothAdapter.listenUsingRfcommWithServiceRecord(Params.BLUETOOTH_SERVICE,
                             Params.BLUETOOTH_UUID);
                 } else {
-                    tmp = mBluetoothAdapter.listenUsingRfcommWithServiceRecord(Params.BLUETOOTH_SERVICE,
-                            Params.BLUETOOTH_UUID);
+                    tmp = mBluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(
+                            Params.BLUETOOTH_SERVICE, Params.BLUETOOTH_UUID);
                 }
             } catch (IOException e) {
                 Log.e(DEBUG_TAG, "Socket Type: " + mSocketType + "listen() failed", e);
@@ -293,7 +501,7 @@ public class BluetoothCommunication {
                             case STATE_CONNECTING:
                                 // Situation normal. Start the connected thread.
                                 connected(socket, socket.getRemoteDevice(),
-                                        mSocketType);
+                                        mSocketType, false);
                                 break;
                             case STATE_NONE:
                             case STATE_CONNECTED:
@@ -358,24 +566,37 @@ public class BluetoothCommunication {
             Log.i(DEBUG_TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
             setName("ConnectThread" + mSocketType);
 
-            // Always cancel discovery because it will slow down a connection
-            mBluetoothAdapter.cancelDiscovery();
+            // Wait until no scan of this app runs and no other connect is in progress
+            RadioScheduler scheduler = RadioScheduler.getInstance();
+            try {
+                scheduler.acquireConnect();
+            } catch (InterruptedException e) {
+                Log.d(DEBUG_TAG, "connect cancelled while queued");
+                return;
+            }
 
-            // Make a connection to the BluetoothSocket
             try {
-                // This is a blocking call and will only return on a
-                // successful connection or an exception
-                mmSocket.connect();
-            } catch (IOException e) {
-                // Close the socket
+                // Always cancel discovery because it will slow down a connection
+                mBluetoothAdapter.cancelDiscovery();
+
+                // Make a connection to the BluetoothSocket
                 try {
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(DEBUG_TAG, "unable to close() " + mSocketType +
-                            " socket during connection failure", e2);
+                    // This is a blocking call and will only return on a
+                    // successful connection or an exception
+                    mmSocket.connect();
+                } catch (IOException e) {
+                    // Close the socket
+                    try {
+                        mmSocket.close();
+                    } catch (IOException e2) {
+                        Log.e(DEBUG_TAG, "unable to close() " + mSocketType +
+                                " socket during connection failure", e2);
+                    }
+                    connectionFailed(mmDevice);
+                    return;
                 }
-                connectionFailed(mmDevice);
-                return;
+            } finally {
+                scheduler.releaseConnect();
             }
 
             // Reset the ConnectThread because we're done
@@ -384,10 +605,12 @@ public class BluetoothCommunication {
             }
 
             // Start the connected thread
-            connected(mmSocket, mmDevice, mSocketType);
+            connected(mmSocket, mmDevice, mSocketType, true);
         }
 
         public void cancel() {
+            // Leave the connect queue of the scheduler
+            interrupt();
             try {
                 mmSocket.close();
             } catch (IOException e) {
@@ -400,12 +623,19 @@ public class BluetoothCommunication {
      * This thread runs during a connection with a remote device.
      * It handles all incoming and outgoing transmissions.
      */
-    private class ConnectedThread extends Thread {
+    private class ConnectedThread extends Thread implements SecureChannel.Link {
         private final BluetoothSocket mmSocket;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
-
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
+        private final SecureChannel mmSecureChannel;
+        private final InboundPublisher mmInboundPublisher;
+        private final List<OutboundSubscriber> mmOutboundSubscribers =
+                new ArrayList<OutboundSubscriber>();
+        private boolean mmClosed;
+        private LinkProbe mmLinkProbe;
+        private byte[] mmFrameBuffer = new byte[Frames.HEADER_SIZE + 1024];
+
+        public ConnectedThread(BluetoothSocket socket, String socketType, boolean client) {
             Log.d(DEBUG_TAG, "create ConnectedThread: " + socketType);
             mmSocket = socket;
             InputStream tmpIn = null;
@@ -421,10 +651,27 @@ public class BluetoothCommunication {
 
             mmInStream = tmpIn;
             mmOutStream = tmpOut;
+            mmSecureChannel = mFramed ? mSecureChannel : null;
+            mmInboundPublisher = mFlowControl ? new InboundPublisher() : null;
+
+            // Start the handshake before anyone is told about the connection, so writes wait for
+            // it. The side that connected speaks first, whatever listeners are set.
+            if (mmSecureChannel != null && mmOutStream != null) {
+                BluetoothDevice device = socket.getRemoteDevice();
+                if (!mmSecureChannel.start(this, client,
+                        device != null ? device.getAddress() : null))
+                    cancel();
+            }
         }
 
         public void run() {
             Log.i(DEBUG_TAG, "BEGIN mConnectedThread");
+            if (mFramed) {
+                runFramed();
+                closeStreams();
+                return;
+            }
+
             byte[] buffer = new byte[1024];
             int bytes;
 
@@ -433,14 +680,16 @@ public class BluetoothCommunication {
                 try {
                     // Read from the InputStream
                     bytes = mmInStream.read(buffer);
+                    if (bytes < 0)
+                        throw new IOException("end of stream");
+                    RadioScheduler.getInstance().onTraffic(bytes);
 
-                    if (mOnBTClientListener != null)
-                        mOnBTClientListener.onClientDataReceived(bytes, buffer);
-                    else if (mOnBTServerListener != null)
-                        mOnBTServerListener.onServerDataReceived(bytes, buffer);
+                    awaitDemand();
+                    dataReceived(bytes, buffer);
 
                 } catch (IOException e) {
                     Log.e(DEBUG_TAG, "disconnected", e);
+                    closeStreams();
                     connectionLost();
                     // Start the service over to restart listening mode
                     BluetoothCommunication.this.startServer();
@@ -449,20 +698,303 @@ public class BluetoothCommunication {
             }
         }
 
+        /**
+         * With flow control, waits until the subscriber wants more data
+         *
+         * @throws IOException If the connection was closed while waiting
+         */
+        private void awaitDemand() throws IOException {
+            if (mmInboundPublisher == null)
+                return;
+            try {
+                if (!mmInboundPublisher.awaitDemand())
+                    throw new IOException("connection closed");
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted while waiting for demand");
+            }
+        }
+
+        private void addOutboundSubscriber(OutboundSubscriber subscriber) {
+            synchronized (mmOutboundSubscribers) {
+                if (!mmClosed) {
+                    mmOutboundSubscribers.add(subscriber);
+                    return;
+                }
+            }
+            subscriber.close();
+        }
+
+        /**
+         * Completes the inbound stream and cancels outbound subscriptions
+         */
+        private void closeStreams() {
+            List<OutboundSubscriber> subscribers;
+            synchronized (mmOutboundSubscribers) {
+                mmClosed = true;
+                subscribers = new ArrayList<OutboundSubscriber>(mmOutboundSubscribers);
+                mmOutboundSubscribers.clear();
+            }
+            for (OutboundSubscriber subscriber : subscribers)
+                subscriber.close();
+            if (mmInboundPublisher != null)
+                mmInboundPublisher.complete();
+        }
+
+        /**
+         * Reads whole frames and dispatches them by type
+         */
+        private void runFramed() {
+            DataInputStream in = new DataInputStream(mmInStream);
+            LinkProbe probe = mLinkProbe;
+            ReplicatedMap map = mReplicatedMap;
+            mmLinkProbe = probe;
+            byte[] buffer = new byte[1024];
+            int[] type = new int[1];
+
+            if (probe != null)
+                probe.start();
+            if (map != null)
+                map.linkUp();
+
+            // Keep listening to the InputStream while connected
+            while (true) {
+                try {
+                    int length = Frames.readHeader(in, type);
+
+                    // Timestamp as early as possible for the probe
+                    long receivedAt = probe != null ? probe.now() : 0;
+
+                    if (length > buffer.length)
+                        buffer = new byte[length];
+                    in.readFully(buffer, 0, length);
+                    RadioScheduler.getInstance().onTraffic(Frames.HEADER_SIZE + length);
+
+                    switch (type[0]) {
+                        case Frames.TYPE_DATA:
+                        case Frames.TYPE_SYNC:
+                            if (mmSecureChannel != null)
+                                Log.w(DEBUG_TAG, "plain message on encrypted link dropped");
+                            else
+                                messageReceived(type[0], length, buffer, receivedAt);
+                            break;
+                        case Frames.TYPE_PING:
+                        case Frames.TYPE_PONG:
+                            // Unauthenticated timing could skew the probe of an encrypted link
+                            if (mmSecureChannel != null)
+                                Log.w(DEBUG_TAG, "plain probe frame on encrypted link dropped");
+                            else
+                                messageReceived(type[0], length, buffer, receivedAt);
+                            break;
+                        case Frames.TYPE_HELLO:
+                        case Frames.TYPE_HELLO_REPLY:
+                        case Frames.TYPE_SEALED:
+                            secureFrameReceived(type[0], length, buffer, receivedAt);
+                            break;
+                        default:
+                            Log.w(DEBUG_TAG, "unknown frame type " + type[0]);
+                            break;
+                    }
+
+                } catch (IOException e) {
+                    Log.e(DEBUG_TAG, "disconnected", e);
+
+                    // A replaced connection must not stop the probe of its successor
+                    synchronized (BluetoothCommunication.this) {
+                        if (mConnectedThread == this) {
+                            if (probe != null)
+                                probe.stop();
+                            if (mmSecureChannel != null)
+                                mmSecureChannel.stop();
+                            if (map != null)
+                                map.linkDown();
+                        }
+                    }
+                    connectionLost();
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Handles handshake and encrypted frames. A frame that fails to decrypt ends the
+         * connection.
+         */
+        private void secureFrameReceived(int type, int length, byte[] buffer, long receivedAt)
+                throws IOException {
+            if (mmSecureChannel == null) {
+                Log.w(DEBUG_TAG, "encrypted frame on plain link dropped");
+                return;
+            }
+
+            try {
+                if (type == Frames.TYPE_SEALED) {
+                    // Dropped without keys, the message type is the last plain byte
+                    int plainLength = mmSecureChannel.open(buffer, 0, length);
+                    if (plainLength > 0)
+                        messageReceived(buffer[plainLength - 1] & 0xff, plainLength - 1, buffer,
+                                receivedAt);
+                    return;
+                }
+
+                // Hold the stream so no data is sealed while keys change
+                synchronized (mmOutStream) {
+                    if (type == Frames.TYPE_HELLO)
+                        mmSecureChannel.onHello(buffer, length);
+                    else
+                        mmSecureChannel.onHelloReply(buffer, length);
+                }
+            } catch (GeneralSecurityException e) {
+                Log.e(DEBUG_TAG, "secure channel failed", e);
+                cancel();
+                throw new IOException("secure channel failed");
+            }
+        }
+
+        /**
+         * Only data waits for demand, control and sync messages are handled right away
+         *
+         * @param receivedAt Probe clock time at which the frame was read
+         */
+        private void messageReceived(int type, int length, byte[] data, long receivedAt)
+                throws IOException {
+            switch (type) {
+                case Frames.TYPE_PING:
+                    if (mmLinkProbe != null)
+                        mmLinkProbe.onPing(data, length, receivedAt);
+                    break;
+                case Frames.TYPE_PONG:
+                    if (mmLinkProbe != null)
+                        mmLinkProbe.onPong(data, length, receivedAt);
+                    break;
+                case Frames.TYPE_DATA:
+                    awaitDemand();
+                    dataReceived(length, data);
+                    break;
+                case Frames.TYPE_SYNC:
+                    if (mReplicatedMap != null)
+                        mReplicatedMap.onMessage(data, length);
+                    break;
+                default:
+                    Log.w(DEBUG_TAG, "unknown message type " + type);
+                    break;
+            }
+        }
+
+        private void dataReceived(int length, byte[] data) {
+            if (mmInboundPublisher != null)
+                mmInboundPublisher.publish(data, length);
+            else if (mOnBTClientListener != null)
+                mOnBTClientListener.onClientDataReceived(length, data);
+            else if (mOnBTServerListener != null)
+                mOnBTServerListener.onServerDataReceived(length, data);
+        }
+
         /**
          * Write to the connected OutStream.
          *
          * @param buffer The bytes to write
+         * @return False if the write failed
          */
-        public void write(byte[] buffer) {
+        public boolean write(byte[] buffer) {
             try {
                 mmOutStream.write(buffer);
             } catch (IOException e) {
                 Log.e(DEBUG_TAG, "Exception during write", e);
+                return false;
+            }
+            RadioScheduler.getInstance().onTraffic(buffer.length);
+            return true;
+        }
+
+        /**
+         * Write a frame to the connected OutStream. Header and payload go out in a single write.
+         *
+         * @return False if the write failed
+         */
+        public boolean writeFrame(int type, byte[] buffer, int offset, int length) {
+            synchronized (mmOutStream) {
+                if (mmFrameBuffer.length < Frames.HEADER_SIZE + length)
+                    mmFrameBuffer = new byte[Frames.HEADER_SIZE + length];
+                Frames.putHeader(mmFrameBuffer, type, length);
+                System.arraycopy(buffer, offset, mmFrameBuffer, Frames.HEADER_SIZE, length);
+                try {
+                    mmOutStream.write(mmFrameBuffer, 0, Frames.HEADER_SIZE + length);
+                } catch (IOException e) {
+                    Log.e(DEBUG_TAG, "Exception during write", e);
+                    return false;
+                }
+                RadioScheduler.getInstance().onTraffic(Frames.HEADER_SIZE + length);
+            }
+            return true;
+        }
+
+        /**
+         * Encrypt a message in place and write it as a single frame
+         *
+         * @return One of SecureChannel.WRITE_OK, WRITE_FAILED, WRITE_NOT_READY
+         */
+        public int writeSealed(int type, byte[] buffer, int offset, int length) {
+            synchronized (mmOutStream) {
+                ensureFrameBuffer(length + 1);
+                System.arraycopy(buffer, offset, mmFrameBuffer, Frames.HEADER_SIZE, length);
+                mmFrameBuffer[Frames.HEADER_SIZE + length] = (byte) type;
+                return sealAndWrite(length + 1);
+            }
+        }
+
+        /**
+         * Encrypt plain text which already ends with its message type and write it
+         *
+         * @return One of SecureChannel.WRITE_OK, WRITE_FAILED, WRITE_NOT_READY
+         */
+        public int writeSealed(byte[] buffer, int offset, int length) {
+            synchronized (mmOutStream) {
+                ensureFrameBuffer(length);
+                System.arraycopy(buffer, offset, mmFrameBuffer, Frames.HEADER_SIZE, length);
+                return sealAndWrite(length);
+            }
+        }
+
+        private void ensureFrameBuffer(int plainLength) {
+            int frameLength = Frames.HEADER_SIZE + plainLength + SecureChannel.TAG_SIZE;
+            if (mmFrameBuffer.length < frameLength)
+                mmFrameBuffer = new byte[frameLength];
+        }
+
+        /**
+         * Seals the plain text in the frame buffer and writes the frame. Hold mmOutStream.
+         */
+        private int sealAndWrite(int plainLength) {
+            int sealedLength;
+            try {
+                sealedLength = mmSecureChannel.seal(mmFrameBuffer, Frames.HEADER_SIZE, plainLength);
+            } catch (GeneralSecurityException e) {
+                Log.e(DEBUG_TAG, "Exception during encryption", e);
+                return SecureChannel.WRITE_FAILED;
+            }
+            if (sealedLength < 0)
+                return SecureChannel.WRITE_NOT_READY;
+
+            Frames.putHeader(mmFrameBuffer, Frames.TYPE_SEALED, sealedLength);
+            try {
+                mmOutStream.write(mmFrameBuffer, 0, Frames.HEADER_SIZE + sealedLength);
+            } catch (IOException e) {
+                Log.e(DEBUG_TAG, "Exception during write", e);
+                return SecureChannel.WRITE_FAILED;
             }
+            RadioScheduler.getInstance().onTraffic(Frames.HEADER_SIZE + sealedLength);
+            return SecureChannel.WRITE_OK;
         }
 
         public void cancel() {
+            if (mLinkProbe != null)
+                mLinkProbe.stop();
+            if (mmSecureChannel != null)
+                mmSecureChannel.stop();
+            if (mReplicatedMap != null)
+                mReplicatedMap.linkDown();
+            if (mmInboundPublisher != null)
+                mmInboundPublisher.complete();
             try {
                 mmSocket.close();
             } catch (IOException e) {
@@ -0,0 +1,291 @@
+package io.pkp.androidbluetooth;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A bluetooth server hosting one or more services at the same time. Unlike
+ * {@link BluetoothCommunication#startServer(OnBTServerListener)}, the listening sockets and their
+ * service records are opened once and kept open across sessions, so a peer reconnecting after a
+ * disconnect lands on a socket that is already listening. Every service accepts any number of
+ * peers, each one gets its own {@link BluetoothServerSession}.
+ * <p/>
+ * The calling activity must make sure that bluetooth is enabled before calling
+ * {@link #start(boolean, boolean)}
+ */
+public class BluetoothServer {
+    final String DEBUG_TAG = this.getClass().getName();
+
+    // Member fields
+    BluetoothTransport mTransport;
+    List<Service> mServices = new ArrayList<Service>();
+    List<ListenThread> mListenThreads = new ArrayList<ListenThread>();
+    Set<BluetoothServerSession> mSessions = new HashSet<BluetoothServerSession>();
+    boolean mRunning;
+    boolean mListenSecure;
+    boolean mListenInsecure;
+    boolean mFlowControl;
+
+    public BluetoothServer() {
+        this(new AndroidBluetoothTransport());
+    }
+
+    /**
+     * A server on a custom transport, e.g. an in-memory loopback for load tests
+     */
+    public BluetoothServer(BluetoothTransport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Adds a service to be hosted by this server. Services added while the server is running are
+     * listened on right away.
+     *
+     * @param name                Service name for the SDP record
+     * @param uuid                UUID for the SDP record
+     * @param onBTServiceListener To send callbacks for sessions of this service
+     */
+    public synchronized void addService(String name, UUID uuid,
+                                        OnBTServiceListener onBTServiceListener) {
+        Service service = new Service(name, uuid, onBTServiceListener);
+        mServices.add(service);
+        if (mRunning)
+            listen(service);
+    }
+
+    /**
+     * Let a subscriber control how fast each session reads, see {@link InboundPublisher}.
+     * Received data is no longer passed to onServiceDataReceived. Subscribe to
+     * {@link BluetoothServerSession#getInboundPublisher()} in onServiceConnected. Applies to
+     * sessions accepted from now on.
+     */
+    public synchronized void enableFlowControl() {
+        mFlowControl = true;
+    }
+
+    /**
+     * Opens persistent listeners for all services
+     *
+     * @param secure   Listen for secure (authenticated and encrypted) connections
+     * @param insecure Listen for insecure connections
+     */
+    public synchronized void start(boolean secure, boolean insecure) {
+        Log.d(DEBUG_TAG, "start");
+        if (mRunning)
+            return;
+        mRunning = true;
+        mListenSecure = secure;
+        mListenInsecure = insecure;
+
+        for (Service service : mServices)
+            listen(service);
+    }
+
+    /**
+     * Closes all listeners, which removes the service records, and all open sessions
+     */
+    public void stop() {
+        Log.d(DEBUG_TAG, "stop");
+        List<ListenThread> listenThreads;
+        List<BluetoothServerSession> sessions;
+
+        synchronized (this) {
+            mRunning = false;
+            listenThreads = new ArrayList<ListenThread>(mListenThreads);
+            sessions = new ArrayList<BluetoothServerSession>(mSessions);
+            mListenThreads.clear();
+            mSessions.clear();
+        }
+
+        for (ListenThread listenThread : listenThreads)
+            listenThread.cancel();
+        for (BluetoothServerSession session : sessions)
+            session.close();
+    }
+
+    /**
+     * All peers currently connected to any service
+     */
+    public synchronized List<BluetoothServerSession> getSessions() {
+        return new ArrayList<BluetoothServerSession>(mSessions);
+    }
+
+    private void listen(Service service) {
+        if (mListenSecure) {
+            ListenThread secureThread = new ListenThread(service, true);
+            mListenThreads.add(secureThread);
+            secureThread.start();
+        }
+        if (mListenInsecure) {
+            ListenThread insecureThread = new ListenThread(service, false);
+            mListenThreads.add(insecureThread);
+            insecureThread.start();
+        }
+    }
+
+    private synchronized boolean sessionStarted(BluetoothServerSession session) {
+        if (!mRunning)
+            return false;
+        mSessions.add(session);
+        return true;
+    }
+
+    synchronized void sessionEnded(BluetoothServerSession session) {
+        mSessions.remove(session);
+    }
+
+    /**
+     * A service name / UUID pair along with its handler
+     */
+    private static class Service {
+        final String mName;
+        final UUID mUuid;
+        final OnBTServiceListener mOnBTServiceListener;
+
+        Service(String name, UUID uuid, OnBTServiceListener onBTServiceListener) {
+            mName = name;
+            mUuid = uuid;
+            mOnBTServiceListener = onBTServiceListener;
+        }
+    }
+
+    /**
+     * This thread keeps one listening socket of a service open for as long as the server is
+     * running. Every accepted connection is handed to a new session and the thread goes straight
+     * back to accepting. If the listening socket fails, it is reopened after a short delay.
+     */
+    private class ListenThread extends Thread {
+        private final Service mmService;
+        private final boolean mmSecure;
+        private final String mSocketType;
+        private BluetoothTransport.ServerSocket mmServerSocket;
+        private volatile boolean mmCancelled;
+
+        public ListenThread(Service service, boolean secure) {
+            mmService = service;
+            mmSecure = secure;
+            mSocketType = secure ? "Secure" : "Insecure";
+        }
+
+        public void run() {
+            Log.d(DEBUG_TAG, "BEGIN ListenThread " + mmService.mName + " " + mSocketType);
+            setName("ListenThread-" + mmService.mName + "-" + mSocketType);
+
+            while (!mmCancelled) {
+                BluetoothTransport.ServerSocket serverSocket = openServerSocket();
+                if (serverSocket == null) {
+                    if (!waitToRelisten())
+                        break;
+                    continue;
+                }
+
+                acceptAll(serverSocket);
+
+                if (!mmCancelled && !waitToRelisten())
+                    break;
+            }
+            Log.i(DEBUG_TAG, "END ListenThread " + mmService.mName + " " + mSocketType);
+        }
+
+        /**
+         * Accepts peers until the listening socket fails or is closed
+         */
+        private void acceptAll(BluetoothTransport.ServerSocket serverSocket) {
+            while (!mmCancelled) {
+                BluetoothTransport.Socket socket;
+                try {
+                    // This is a blocking call and will only return on a
+                    // successful connection or an exception
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    if (!mmCancelled)
+                        Log.e(DEBUG_TAG, "Socket Type: " + mSocketType + " accept() failed", e);
+                    break;
+                }
+
+                if (socket == null)
+                    continue;
+
+                BluetoothServerSession session = new BluetoothServerSession(BluetoothServer.this,
+                        socket, mmService.mName, mmSecure, mFlowControl,
+                        mmService.mOnBTServiceListener);
+                if (sessionStarted(session)) {
+                    session.start();
+                } else {
+                    // Server was stopped meanwhile. Terminate new socket.
+                    session.close();
+                }
+            }
+
+            synchronized (this) {
+                mmServerSocket = null;
+            }
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                Log.e(DEBUG_TAG, "Socket Type: " + mSocketType + " close() of server failed", e);
+            }
+        }
+
+        private BluetoothTransport.ServerSocket openServerSocket() {
+            BluetoothTransport.ServerSocket tmp;
+
+            // Create a new listening server socket
+            try {
+                tmp = mTransport.listen(mmService.mName, mmService.mUuid, mmSecure);
+            } catch (IOException e) {
+                Log.e(DEBUG_TAG, "Socket Type: " + mSocketType + " listen() failed", e);
+                return null;
+            }
+
+            synchronized (this) {
+                if (mmCancelled) {
+                    try {
+                        tmp.close();
+                    } catch (IOException e) {
+                        Log.e(DEBUG_TAG, "Socket Type: " + mSocketType + " close() of server failed", e);
+                    }
+                    return null;
+                }
+                mmServerSocket = tmp;
+            }
+            return tmp;
+        }
+
+        /**
+         * @return False if the thread was cancelled while waiting
+         */
+        private boolean waitToRelisten() {
+            try {
+                Thread.sleep(Params.SERVER_RELISTEN_DELAY);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            return !mmCancelled;
+        }
+
+        public void cancel() {
+            Log.d(DEBUG_TAG, "Socket Type: " + mSocketType + " cancel " + this);
+            BluetoothTransport.ServerSocket serverSocket;
+            synchronized (this) {
+                mmCancelled = true;
+                serverSocket = mmServerSocket;
+                mmServerSocket = null;
+            }
+            interrupt();
+            if (serverSocket == null)
+                return;
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                Log.e(DEBUG_TAG, "Socket Type: " + mSocketType + " close() of server failed", e);
+            }
+        }
+    }
+}
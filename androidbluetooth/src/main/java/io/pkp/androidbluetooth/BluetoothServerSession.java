@@ -0,0 +1,232 @@
+package io.pkp.androidbluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single peer connected to a service of a {@link BluetoothServer}. Reads on its own thread and
+ * hands all incoming data to the listener of the service.
+ */
+public class BluetoothServerSession {
+    final String DEBUG_TAG = this.getClass().getName();
+
+    // Member fields
+    BluetoothServer mServer;
+    BluetoothTransport.Socket mSocket;
+    String mServiceName;
+    boolean mSecure;
+    boolean mUsesRadio;
+    ReadThread mReadThread;
+    OutputStream mOutStream;
+    InboundPublisher mInboundPublisher;
+    List<OutboundSubscriber> mOutboundSubscribers = new ArrayList<OutboundSubscriber>();
+    boolean mEnded;
+
+    // Callbacks
+    OnBTServiceListener mOnBTServiceListener;
+
+    BluetoothServerSession(BluetoothServer server, BluetoothTransport.Socket socket,
+                           String serviceName, boolean secure, boolean flowControl,
+                           OnBTServiceListener onBTServiceListener) {
+        this.mServer = server;
+        this.mSocket = socket;
+        this.mServiceName = serviceName;
+        this.mSecure = secure;
+        this.mOnBTServiceListener = onBTServiceListener;
+        mUsesRadio = server.mTransport.usesRadio();
+        if (flowControl)
+            mInboundPublisher = new InboundPublisher();
+    }
+
+    /**
+     * The remote device of this session, null on a transport without real devices
+     */
+    public BluetoothDevice getDevice() {
+        return mSocket.getRemoteDevice();
+    }
+
+    /**
+     * Name of the service this peer connected to
+     */
+    public String getServiceName() {
+        return mServiceName;
+    }
+
+    /**
+     * True if the peer connected to the secure listener of the service
+     */
+    public boolean isSecure() {
+        return mSecure;
+    }
+
+    /**
+     * Data received from the peer, see {@link BluetoothServer#enableFlowControl()}
+     *
+     * @return The publisher, null if flow control is not enabled
+     */
+    public BTFlow.Publisher<byte[]> getInboundPublisher() {
+        return mInboundPublisher;
+    }
+
+    /**
+     * A subscriber that writes every item to the peer. It is cancelled when the session ends.
+     */
+    public BTFlow.Subscriber<byte[]> getOutboundSubscriber() {
+        OutboundSubscriber subscriber = new OutboundSubscriber(new OutboundSubscriber.Sink() {
+            public boolean write(byte[] data) {
+                return send(data, 0, data.length);
+            }
+        }, Params.FLOW_OUTBOUND_WINDOW);
+
+        synchronized (this) {
+            if (!mEnded) {
+                mOutboundSubscribers.add(subscriber);
+                return subscriber;
+            }
+        }
+        subscriber.close();
+        return subscriber;
+    }
+
+    /**
+     * Write to the peer of this session
+     *
+     * @param out The bytes to be written
+     */
+    public void write(byte[] out) {
+        write(out, 0, out.length);
+    }
+
+    /**
+     * Write part of a buffer to the peer of this session
+     *
+     * @param out    The bytes to be written
+     * @param offset Start of the bytes in out
+     * @param length Number of bytes to write
+     */
+    public void write(byte[] out, int offset, int length) {
+        send(out, offset, length);
+    }
+
+    /**
+     * @return False if the session is not open or the write failed
+     */
+    private boolean send(byte[] out, int offset, int length) {
+        OutputStream stream;
+        synchronized (this) {
+            if (mOutStream == null) return false;
+            stream = mOutStream;
+        }
+        try {
+            stream.write(out, offset, length);
+        } catch (IOException e) {
+            Log.e(DEBUG_TAG, "Exception during write", e);
+            return false;
+        }
+        if (mUsesRadio)
+            RadioScheduler.getInstance().onTraffic(length);
+        return true;
+    }
+
+    /**
+     * Closes the connection to the peer. The service keeps listening for new peers.
+     */
+    public void close() {
+        if (mInboundPublisher != null)
+            mInboundPublisher.complete();
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            Log.e(DEBUG_TAG, "close() of session socket failed", e);
+        }
+    }
+
+    /**
+     * Starts reading from the peer
+     */
+    void start() {
+        mReadThread = new ReadThread();
+        mReadThread.start();
+    }
+
+    /**
+     * This thread runs during a session with a remote device. It handles all incoming
+     * transmissions until the connection is lost or closed.
+     */
+    private class ReadThread extends Thread {
+
+        public void run() {
+            setName("ServerSession-" + mServiceName);
+            InputStream inStream;
+
+            // Get the socket input and output streams
+            try {
+                inStream = mSocket.getInputStream();
+                synchronized (BluetoothServerSession.this) {
+                    mOutStream = mSocket.getOutputStream();
+                }
+            } catch (IOException e) {
+                Log.e(DEBUG_TAG, "session streams not created", e);
+                close();
+                mServer.sessionEnded(BluetoothServerSession.this);
+                return;
+            }
+
+            if (mOnBTServiceListener != null)
+                mOnBTServiceListener.onServiceConnected(BluetoothServerSession.this);
+
+            byte[] buffer = new byte[1024];
+            int bytes;
+
+            // Keep listening to the InputStream while connected
+            while (true) {
+                try {
+                    // Read from the InputStream
+                    bytes = inStream.read(buffer);
+                    if (bytes < 0)
+                        throw new IOException("end of stream");
+                    if (mUsesRadio)
+                        RadioScheduler.getInstance().onTraffic(bytes);
+
+                    if (mInboundPublisher != null) {
+                        // Hold the chunk until the subscriber wants more
+                        if (!mInboundPublisher.awaitDemand())
+                            break;
+                        mInboundPublisher.publish(buffer, bytes);
+                    } else if (mOnBTServiceListener != null)
+                        mOnBTServiceListener.onServiceDataReceived(BluetoothServerSession.this,
+                                bytes, buffer);
+
+                } catch (IOException e) {
+                    Log.d(DEBUG_TAG, "session disconnected: " + mServiceName);
+                    break;
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+
+            List<OutboundSubscriber> subscribers;
+            synchronized (BluetoothServerSession.this) {
+                mOutStream = null;
+                mEnded = true;
+                subscribers = new ArrayList<OutboundSubscriber>(mOutboundSubscribers);
+                mOutboundSubscribers.clear();
+            }
+            for (OutboundSubscriber subscriber : subscribers)
+                subscriber.close();
+            if (mInboundPublisher != null)
+                mInboundPublisher.complete();
+            close();
+            mServer.sessionEnded(BluetoothServerSession.this);
+
+            if (mOnBTServiceListener != null)
+                mOnBTServiceListener.onServiceConnectionLost(BluetoothServerSession.this);
+        }
+    }
+}
@@ -26,6 +26,7 @@ public class BluetoothSetup {
     BroadcastReceiver mDiscoveryReceiver;
     BroadcastReceiver mBondingReceiver;
     BroadcastReceiver mStateChangeReceiver;
+    RadioScheduler.ScanClient mScanClient;
 
     OnBTScanListener mOnBTScanListener;
     OnBTBondListener mOnBTBondListener;
@@ -62,7 +63,8 @@ public class BluetoothSetup {
     }
 
     /**
-     * Starts discovering new bluetooth devices.
+     * Starts discovering new bluetooth devices. The scan goes through the {@link RadioScheduler},
+     * so it may start late or pause while connections are busy.
      *
      * @param onBTScanListener listener to receive updates when devices are found
      * @return False if the discovery process failed to start
@@ -83,24 +85,26 @@ public class BluetoothSetup {
                     if (mOnBTScanListener != null)
                         mOnBTScanListener.onDeviceFound(device);
                 }
+            }
+        };
 
-                // When discovery is complete
-                if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
+        // Discovery runs in slices, completion is told by the scheduler
+        if (mScanClient == null) {
+            mScanClient = new RadioScheduler.ScanClient() {
+                public void onScanComplete() {
                     if (mOnBTScanListener != null)
                         mOnBTScanListener.onScanComplete();
                 }
-            }
-        };
+            };
+        }
 
         // Register the BroadcastReceiver
         IntentFilter filters = new IntentFilter();
         filters.addAction(BluetoothDevice.ACTION_FOUND);
-        filters.addAction(BluetoothAdapter.ACTION_DISCOVERY_STARTED);
-        filters.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
         mContext.registerReceiver(mDiscoveryReceiver, filters);
 
         // Start discovery
-        return mBluetoothAdapter.startDiscovery();
+        return RadioScheduler.getInstance().requestScan(mScanClient);
     }
 
     /**
@@ -113,7 +117,8 @@ public class BluetoothSetup {
         } catch (IllegalArgumentException e) {
             e.printStackTrace();
         }
-        mBluetoothAdapter.cancelDiscovery();
+        if (mScanClient != null)
+            RadioScheduler.getInstance().cancelScan(mScanClient);
     }
 
     public void subscribeStateChanges(OnBTStateListener onBTStateListener) {
@@ -175,30 +180,67 @@ public class BluetoothSetup {
     public void bond(BluetoothDevice device, OnBTBondListener onBTBondListener) {
         this.mOnBTBondListener = onBTBondListener;
 
-        // Create a BroadcastReceiver for BOND_STATE changes
-        mBondingReceiver = new BroadcastReceiver() {
-            public void onReceive(Context context, Intent intent) {
-                String action = intent.getAction();
-
-                // When device bond state changed
-                if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
-                    BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                    int currState = 0;//intent.getParcelableExtra(BluetoothDevice.EXTRA_BOND_STATE);
-                    int prevState = 0;//intent.getParcelableExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE);
-
-                    // Send update to user
-                    if (mOnBTBondListener != null)
-                        mOnBTBondListener.onBondStateChange(device, currState, prevState);
+        // Register the receiver once, later calls only swap the listener
+        if (mBondingReceiver == null) {
+
+            // Create a BroadcastReceiver for BOND_STATE changes
+            mBondingReceiver = new BroadcastReceiver() {
+                public void onReceive(Context context, Intent intent) {
+                    String action = intent.getAction();
+
+                    // When device bond state changed
+                    if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
+                        BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                        int currState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE,
+                                BluetoothDevice.ERROR);
+                        int prevState = intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE,
+                                BluetoothDevice.ERROR);
+
+                        // Send update to user
+                        if (mOnBTBondListener != null)
+                            mOnBTBondListener.onBondStateChange(device, currState, prevState);
+                    }
                 }
-            }
-        };
+            };
 
-        // Register the BroadcastReceiver
-        IntentFilter filters = new IntentFilter();
-        filters.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
-        mContext.registerReceiver(mBondingReceiver, filters);
+            // Register the BroadcastReceiver
+            IntentFilter filters = new IntentFilter();
+            filters.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+            mContext.registerReceiver(mBondingReceiver, filters);
+        }
 
         device.createBond();
     }
 
+    /**
+     * Bonds with all the given bluetooth devices, a few at a time.
+     * See {@link BluetoothBulkBonder} for tuning concurrency, retries and timeouts.
+     *
+     * @param devices              Devices to bond with
+     * @param onBTBulkBondListener Listener to receive callbacks for actions
+     * @return The bonder running the batch, can be used to cancel it
+     */
+    public BluetoothBulkBonder bond(List<BluetoothDevice> devices,
+                                    OnBTBulkBondListener onBTBulkBondListener) {
+        BluetoothBulkBonder bonder = new BluetoothBulkBonder(mContext);
+        bonder.bond(devices, onBTBulkBondListener);
+        return bonder;
+    }
+
+    /**
+     * Stop receiving bond state updates for devices passed to
+     * {@link #bond(BluetoothDevice, OnBTBondListener)}.
+     * -TODO- call this in onDestroy of caller activity
+     */
+    public void stopBondUpdates() {
+        if (mBondingReceiver == null)
+            return;
+        try {
+            mContext.unregisterReceiver(mBondingReceiver);
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+        mBondingReceiver = null;
+    }
+
 }
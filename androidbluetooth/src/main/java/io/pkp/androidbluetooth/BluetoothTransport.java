@@ -0,0 +1,59 @@
+package io.pkp.androidbluetooth;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * The sockets a {@link BluetoothServer} listens and talks on. {@link AndroidBluetoothTransport}
+ * uses the bluetooth adapter, the tests use an in-memory loopback instead.
+ */
+public interface BluetoothTransport {
+
+    /**
+     * Opens a listening socket with a service record
+     *
+     * @param name   Service name for the SDP record
+     * @param uuid   UUID for the SDP record
+     * @param secure Secure (true) , Insecure (false)
+     */
+    public ServerSocket listen(String name, UUID uuid, boolean secure) throws IOException;
+
+    /**
+     * True if the sockets use the bluetooth radio, only their traffic holds back discovery
+     */
+    public boolean usesRadio();
+
+    /**
+     * A listening socket, counterpart of BluetoothServerSocket
+     */
+    public interface ServerSocket {
+
+        /**
+         * Blocks until a peer connects or the socket is closed
+         */
+        public Socket accept() throws IOException;
+
+        public void close() throws IOException;
+    }
+
+    /**
+     * A connected socket, counterpart of BluetoothSocket
+     */
+    public interface Socket {
+
+        public InputStream getInputStream() throws IOException;
+
+        public OutputStream getOutputStream() throws IOException;
+
+        /**
+         * The remote device, null if the transport has no real device behind it
+         */
+        public BluetoothDevice getRemoteDevice();
+
+        public void close() throws IOException;
+    }
+}
@@ -0,0 +1,75 @@
+package io.pkp.androidbluetooth;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Layout of the frames exchanged on a framed link. Every frame is a one byte type, a four byte
+ * big-endian payload length and the payload itself. Both peers must use framing, a framed link
+ * cannot talk to a raw one.
+ * <p/>
+ * On an encrypted link, messages (data, sync and probe) travel in sealed frames. Their plain
+ * text ends with one byte holding the message type, so the payload stays at the start of the
+ * buffer.
+ */
+final class Frames {
+
+    // Frame types
+    static final int TYPE_DATA = 0;         // Application data, passed on to the listeners
+    static final int TYPE_PING = 1;         // Link probe request
+    static final int TYPE_PONG = 2;         // Link probe reply
+    static final int TYPE_HELLO = 3;        // Secure channel handshake, client to server
+    static final int TYPE_HELLO_REPLY = 4;  // Secure channel handshake, server to client
+    static final int TYPE_SEALED = 5;       // Encrypted message, type in the last plain byte
+    static final int TYPE_SYNC = 6;         // Replicated map update
+
+    static final int HEADER_SIZE = 5;
+
+    // Largest message that fits a frame, whether sealed or not
+    static final int MAX_MESSAGE_SIZE = Params.FRAME_MAX_PAYLOAD - SecureChannel.TAG_SIZE - 1;
+
+    private Frames() {
+    }
+
+    /**
+     * Writes a frame header into the given buffer
+     */
+    static void putHeader(byte[] buffer, int type, int length) {
+        buffer[0] = (byte) type;
+        putInt(buffer, 1, length);
+    }
+
+    /**
+     * Reads a frame header and checks its length
+     *
+     * @return The payload length, the type is stored in the first slot of type
+     */
+    static int readHeader(DataInputStream in, int[] type) throws IOException {
+        type[0] = in.readUnsignedByte();
+        int length = in.readInt();
+        if (length < 0 || length > Params.FRAME_MAX_PAYLOAD)
+            throw new IOException("invalid frame length " + length);
+        return length;
+    }
+
+    static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    static int getInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+    static void putLong(byte[] buffer, int offset, long value) {
+        putInt(buffer, offset, (int) (value >>> 32));
+        putInt(buffer, offset + 4, (int) value);
+    }
+
+    static long getLong(byte[] buffer, int offset) {
+        return ((long) getInt(buffer, offset) << 32) | (getInt(buffer, offset + 4) & 0xffffffffL);
+    }
+}
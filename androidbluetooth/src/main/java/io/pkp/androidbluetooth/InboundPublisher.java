@@ -0,0 +1,170 @@
+package io.pkp.androidbluetooth;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Publishes the data received on one connection. A received item is held until the subscriber
+ * has requested more, and the connection reads nothing else meanwhile, so a slow consumer slows
+ * down the peer instead of filling memory. At most one item is buffered.
+ * <p/>
+ * Items are copies of the received chunks, one message each on a framed link. They are delivered
+ * on the reading thread, a subscriber that does slow work should hand them off. Only one
+ * subscriber is served at a time. After it cancels, a new one continues with the next item.
+ * The stream completes when the connection ends.
+ * <p/>
+ * On a framed link only data waits for demand. Pings of a {@link LinkProbe}, encryption
+ * handshakes and {@link ReplicatedMap} messages are handled as they arrive.
+ */
+public class InboundPublisher implements BTFlow.Publisher<byte[]> {
+    final String DEBUG_TAG = this.getClass().getName();
+
+    // Member fields, guarded by this
+    BTFlow.Subscriber<? super byte[]> mSubscriber;
+    long mDemand;
+    byte[] mPending;
+    boolean mCompleted;
+
+    InboundPublisher() {
+    }
+
+    public void subscribe(BTFlow.Subscriber<? super byte[]> subscriber) {
+        if (subscriber == null)
+            throw new NullPointerException("subscriber");
+
+        boolean rejected;
+        boolean completed;
+        Subscription subscription = new Subscription(subscriber);
+        synchronized (this) {
+            rejected = mSubscriber != null;
+            completed = mCompleted;
+            if (!rejected && !completed) {
+                mSubscriber = subscriber;
+                mDemand = 0;
+            }
+        }
+
+        if (rejected) {
+            subscriber.onSubscribe(new Subscription(null));
+            subscriber.onError(new IllegalStateException("already subscribed"));
+            return;
+        }
+
+        subscriber.onSubscribe(subscription);
+        if (completed)
+            subscriber.onComplete();
+    }
+
+    /**
+     * Blocks the reading thread until the subscriber wants another item, call it before
+     * publishing. An item that was received after the previous subscriber cancelled is delivered
+     * first.
+     *
+     * @return False if the stream was completed meanwhile
+     */
+    boolean awaitDemand() throws InterruptedException {
+        while (true) {
+            BTFlow.Subscriber<? super byte[]> subscriber;
+            byte[] pending;
+            synchronized (this) {
+                while (!mCompleted && (mSubscriber == null || mDemand == 0))
+                    wait();
+                if (mCompleted)
+                    return false;
+                if (mPending == null)
+                    return true;
+
+                subscriber = mSubscriber;
+                pending = mPending;
+                mPending = null;
+                if (mDemand != Long.MAX_VALUE)
+                    mDemand--;
+            }
+            subscriber.onNext(pending);
+        }
+    }
+
+    /**
+     * Delivers a received chunk, call only after {@link #awaitDemand()} returned true
+     */
+    void publish(byte[] data, int length) {
+        byte[] item = Arrays.copyOf(data, length);
+        BTFlow.Subscriber<? super byte[]> subscriber;
+        synchronized (this) {
+            subscriber = mSubscriber;
+            if (subscriber == null || mDemand == 0) {
+                // Cancelled since, keep it for the next subscriber
+                mPending = item;
+                return;
+            }
+            if (mDemand != Long.MAX_VALUE)
+                mDemand--;
+        }
+        subscriber.onNext(item);
+    }
+
+    /**
+     * Ends the stream, also wakes a reading thread waiting for demand
+     */
+    void complete() {
+        BTFlow.Subscriber<? super byte[]> subscriber;
+        synchronized (this) {
+            if (mCompleted)
+                return;
+            mCompleted = true;
+            subscriber = mSubscriber;
+            mSubscriber = null;
+            notifyAll();
+        }
+        if (subscriber != null)
+            subscriber.onComplete();
+    }
+
+    private void request(BTFlow.Subscriber<? super byte[]> subscriber, long n) {
+        if (n <= 0) {
+            if (cancel(subscriber))
+                subscriber.onError(new IllegalArgumentException("non-positive request: " + n));
+            return;
+        }
+        synchronized (this) {
+            if (mSubscriber != subscriber)
+                return;
+            mDemand = mDemand + n < 0 ? Long.MAX_VALUE : mDemand + n;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return True if the subscriber was the current one
+     */
+    private synchronized boolean cancel(BTFlow.Subscriber<? super byte[]> subscriber) {
+        if (mSubscriber != subscriber)
+            return false;
+        Log.d(DEBUG_TAG, "subscriber cancelled");
+        mSubscriber = null;
+        mDemand = 0;
+        return true;
+    }
+
+    /**
+     * Subscription of one subscriber, does nothing once another one took over
+     */
+    private class Subscription implements BTFlow.Subscription {
+        private final BTFlow.Subscriber<? super byte[]> mmSubscriber;
+
+        Subscription(BTFlow.Subscriber<? super byte[]> subscriber) {
+            mmSubscriber = subscriber;
+        }
+
+        public void request(long n) {
+            if (mmSubscriber != null)
+                InboundPublisher.this.request(mmSubscriber, n);
+        }
+
+        public void cancel() {
+            if (mmSubscriber != null)
+                InboundPublisher.this.cancel(mmSubscriber);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package io.pkp.androidbluetooth;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Measures round trip time on a framed {@link BluetoothCommunication} link and estimates the clock
+ * offset to the peer. Pings are sent at a fixed interval while connected and answered by the peer
+ * with a pong carrying its receive and send timestamps, as in NTP. On an encrypted link both are
+ * sealed, so the peer's timing cannot be forged, and no ping goes out before the handshake.
+ * <p/>
+ * Timestamps come from a clock derived from {@link SystemClock#elapsedRealtimeNanos()}, anchored to
+ * the wall clock once when the probe is created. It is monotonic and cheap to read, so the offset
+ * returned here is the offset between the two probe clocks.
+ * <p/>
+ * The probe also keeps a send rate factor. It is halved on every RTT spike and slowly recovers
+ * while round trips are normal. Outbound subscribers of the connection scale their window with
+ * it, apps that write directly can scale their send rate with it too.
+ */
+public class LinkProbe {
+    final String DEBUG_TAG = this.getClass().getName();
+
+    // Payload sizes
+    static final int PING_SIZE = 12;  // seq, t0
+    static final int PONG_SIZE = 28;  // seq, t0, t1, t2
+
+    private static final float MIN_SEND_RATE_FACTOR = 0.125f;
+    private static final float SEND_RATE_RECOVERY = 0.05f;
+    private static final int MIN_SPIKE_SAMPLES = 8;
+
+    // Received from caller
+    BluetoothCommunication mCommunication;
+    long mInterval;
+    OnBTLinkProbeListener mOnBTLinkProbeListener;
+
+    // Clock
+    final long mWallBase;
+    final long mElapsedBase;
+
+    // Member fields
+    PingThread mPingThread;
+    int mSeq;
+    byte[] mPing = new byte[PING_SIZE];
+    byte[] mPong = new byte[PONG_SIZE];
+
+    // Rolling window of samples, guarded by this
+    long[] mRtts = new long[Params.LINK_PROBE_WINDOW];
+    long[] mOffsets = new long[Params.LINK_PROBE_WINDOW];
+    long[] mSampleTimes = new long[Params.LINK_PROBE_WINDOW];
+    int mNext;
+    int mCount;
+    float mSendRateFactor = 1f;
+
+    LinkProbe(BluetoothCommunication communication, long interval,
+              OnBTLinkProbeListener onBTLinkProbeListener) {
+        this.mCommunication = communication;
+        this.mInterval = interval;
+        this.mOnBTLinkProbeListener = onBTLinkProbeListener;
+        mWallBase = System.currentTimeMillis() * 1000000L;
+        mElapsedBase = SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Current time of the probe clock in nanoseconds since the epoch
+     */
+    public long now() {
+        return mWallBase + (SystemClock.elapsedRealtimeNanos() - mElapsedBase);
+    }
+
+    /**
+     * Smallest round trip time in the window, in nanoseconds. -1 if there are no samples yet.
+     */
+    public long getMinRtt() {
+        return getRttPercentile(0);
+    }
+
+    /**
+     * Median round trip time in the window, in nanoseconds. -1 if there are no samples yet.
+     */
+    public long getMedianRtt() {
+        return getRttPercentile(50);
+    }
+
+    /**
+     * 99th percentile round trip time in the window, in nanoseconds. -1 if there are no samples
+     * yet.
+     */
+    public long getP99Rtt() {
+        return getRttPercentile(99);
+    }
+
+    /**
+     * Round trip time at the given percentile of the window, in nanoseconds
+     *
+     * @param percentile 0 to 100
+     * @return -1 if there are no samples yet
+     */
+    public synchronized long getRttPercentile(int percentile) {
+        if (mCount == 0)
+            return -1;
+        long[] sorted = Arrays.copyOf(mRtts, mCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * mCount) - 1;
+        return sorted[Math.max(0, Math.min(mCount - 1, index))];
+    }
+
+    /**
+     * Estimated offset of the peer clock from the local clock in nanoseconds, taken from the
+     * sample with the lowest round trip delay in the window as that one is least skewed by
+     * queueing. Add it to a local timestamp to get the peer time.
+     */
+    public synchronized long getClockOffset() {
+        if (mCount == 0)
+            return 0;
+        return mOffsets[bestSample()];
+    }
+
+    /**
+     * Index of the sample with the lowest round trip delay. Hold this and have samples.
+     */
+    private int bestSample() {
+        int best = 0;
+        for (int i = 1; i < mCount; i++)
+            if (mRtts[i] < mRtts[best])
+                best = i;
+        return best;
+    }
+
+    /**
+     * Estimated drift of the peer clock against the local clock, in parts per million. Least
+     * squares slope of the offset over local time in the window.
+     */
+    public synchronized double getClockDrift() {
+        if (mCount < 2)
+            return 0;
+
+        // Center values to keep the sums small
+        long timeBase = mSampleTimes[0];
+        long offsetBase = mOffsets[0];
+        double meanTime = 0, meanOffset = 0;
+        for (int i = 0; i < mCount; i++) {
+            meanTime += mSampleTimes[i] - timeBase;
+            meanOffset += mOffsets[i] - offsetBase;
+        }
+        meanTime /= mCount;
+        meanOffset /= mCount;
+
+        double covariance = 0, variance = 0;
+        for (int i = 0; i < mCount; i++) {
+            double dt = mSampleTimes[i] - timeBase - meanTime;
+            double dOffset = mOffsets[i] - offsetBase - meanOffset;
+            covariance += dt * dOffset;
+            variance += dt * dt;
+        }
+        if (variance == 0)
+            return 0;
+        return covariance / variance * 1e6;
+    }
+
+    /**
+     * Converts a local probe clock timestamp into the peer clock, using offset and drift. The
+     * drift is extrapolated from the time of the sample the offset was taken from.
+     */
+    public synchronized long toPeerTime(long localNanos) {
+        if (mCount == 0)
+            return localNanos;
+        int best = bestSample();
+        double drift = getClockDrift() / 1e6;
+        return localNanos + mOffsets[best]
+                + (long) (drift * (localNanos - mSampleTimes[best]));
+    }
+
+    /**
+     * Factor between 1 and 1/8 by which the send rate should currently be scaled. Lowered on RTT
+     * spikes, recovers while round trips are normal.
+     */
+    public synchronized float getSendRateFactor() {
+        return mSendRateFactor;
+    }
+
+    /**
+     * Starts sending pings. Called when the link comes up.
+     */
+    synchronized void start() {
+        stop();
+        mNext = 0;
+        mCount = 0;
+        mSendRateFactor = 1f;
+        mPingThread = new PingThread();
+        mPingThread.start();
+    }
+
+    /**
+     * Stops sending pings. Called when the link goes down.
+     */
+    synchronized void stop() {
+        if (mPingThread != null) {
+            mPingThread.cancel();
+            mPingThread = null;
+        }
+    }
+
+    /**
+     * Answers a ping of the peer
+     *
+     * @param receivedAt Probe clock time at which the frame was read
+     */
+    void onPing(byte[] payload, int length, long receivedAt) {
+        if (length < PING_SIZE)
+            return;
+
+        // Only the reader thread answers pings, so the pong buffer can be reused
+        System.arraycopy(payload, 0, mPong, 0, PING_SIZE);
+        Frames.putLong(mPong, 12, receivedAt);
+        Frames.putLong(mPong, 20, now());
+        // Never wait for keys here, the reader thread has to finish the handshake
+        mCommunication.writeMessageNow(Frames.TYPE_PONG, mPong, 0, PONG_SIZE);
+    }
+
+    /**
+     * Takes a sample from a pong of the peer
+     *
+     * @param receivedAt Probe clock time at which the frame was read
+     */
+    void onPong(byte[] payload, int length, long receivedAt) {
+        if (length < PONG_SIZE)
+            return;
+
+        long t0 = Frames.getLong(payload, 4);
+        long t1 = Frames.getLong(payload, 12);
+        long t2 = Frames.getLong(payload, 20);
+        long t3 = receivedAt;
+
+        long rtt = (t3 - t0) - (t2 - t1);
+        long offset = ((t1 - t0) + (t2 - t3)) / 2;
+        if (rtt < 0)
+            return;
+
+        long median;
+        boolean spike;
+        synchronized (this) {
+            median = mCount >= MIN_SPIKE_SAMPLES ? getMedianRtt() : -1;
+            spike = median > 0 && rtt > median * Params.LINK_PROBE_SPIKE_FACTOR;
+
+            // Halve on spikes, recover additively otherwise
+            if (spike)
+                mSendRateFactor = Math.max(MIN_SEND_RATE_FACTOR, mSendRateFactor / 2);
+            else
+                mSendRateFactor = Math.min(1f, mSendRateFactor + SEND_RATE_RECOVERY);
+
+            mRtts[mNext] = rtt;
+            mOffsets[mNext] = offset;
+            mSampleTimes[mNext] = t3;
+            mNext = (mNext + 1) % mRtts.length;
+            if (mCount < mRtts.length)
+                mCount++;
+        }
+
+        if (mOnBTLinkProbeListener != null) {
+            mOnBTLinkProbeListener.onRttSample(rtt);
+            if (spike)
+                mOnBTLinkProbeListener.onRttSpike(rtt, median);
+        }
+    }
+
+    /**
+     * This thread sends a ping every interval until cancelled
+     */
+    private class PingThread extends Thread {
+        private volatile boolean mmCancelled;
+
+        public void run() {
+            setName("LinkProbe");
+            while (!mmCancelled) {
+                try {
+                    Thread.sleep(mInterval);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (mmCancelled)
+                    break;
+
+                Frames.putInt(mPing, 0, mSeq++);
+                Frames.putLong(mPing, 4, now());
+                if (!mCommunication.writeMessageNow(Frames.TYPE_PING, mPing, 0, PING_SIZE))
+                    Log.d(DEBUG_TAG, "ping not sent, link is down or not secured yet");
+            }
+        }
+
+        public void cancel() {
+            mmCancelled = true;
+            interrupt();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package io.pkp.androidbluetooth;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * Provides necessary callbacks for bonding with a list of bluetooth devices
+ */
+public interface OnBTBulkBondListener {
+
+    /**
+     * When bond state of any device in the batch changes
+     *
+     * @param device
+     * @param currState One of BluetoothDevice.BOND_NONE, BOND_BONDING or BOND_BONDED
+     * @param prevState One of BluetoothDevice.BOND_NONE, BOND_BONDING or BOND_BONDED
+     */
+    public void onBondStateChange(BluetoothDevice device, int currState, int prevState);
+
+    /**
+     * When a device has been bonded
+     *
+     * @param device
+     * @param attempts   Number of bond attempts made for this device
+     * @param durationMs Time from the first attempt until the device was bonded
+     */
+    public void onDeviceBonded(BluetoothDevice device, int attempts, long durationMs);
+
+    /**
+     * When a device could not be bonded even after all retries
+     *
+     * @param device
+     * @param attempts   Number of bond attempts made for this device
+     * @param durationMs Time from the first attempt until the last one gave up
+     */
+    public void onDeviceBondFailed(BluetoothDevice device, int attempts, long durationMs);
+
+    /**
+     * After every device that has finished, either bonded or failed
+     *
+     * @param completed Devices finished so far
+     * @param total     Devices in the batch
+     */
+    public void onBulkBondProgress(int completed, int total);
+
+    /**
+     * When all devices in the batch have finished
+     *
+     * @param bonded Devices that were bonded
+     * @param failed Devices that could not be bonded
+     */
+    public void onBulkBondComplete(int bonded, int failed);
+}
@@ -0,0 +1,24 @@
+package io.pkp.androidbluetooth;
+
+/**
+ * Callbacks for round trip measurements of a {@link LinkProbe}. These are called on the thread
+ * reading from the connection, so they should return quickly.
+ */
+public interface OnBTLinkProbeListener {
+
+    /**
+     * When a pong has been received for a ping
+     *
+     * @param rttNanos Round trip time of this ping, without the time the peer held it
+     */
+    public void onRttSample(long rttNanos);
+
+    /**
+     * When a round trip took much longer than the recent median. The send rate factor of the
+     * probe has already been lowered when this is called.
+     *
+     * @param rttNanos    Round trip time of this ping
+     * @param medianNanos Median round trip time of the recent window
+     */
+    public void onRttSpike(long rttNanos, long medianNanos);
+}
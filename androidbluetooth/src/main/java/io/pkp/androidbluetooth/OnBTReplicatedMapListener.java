@@ -0,0 +1,16 @@
+package io.pkp.androidbluetooth;
+
+/**
+ * Callbacks for changes a peer made to a {@link ReplicatedMap}. These are called on the thread
+ * reading from the connection, so they should return quickly.
+ */
+public interface OnBTReplicatedMapListener {
+
+    /**
+     * When an entry was changed by the peer
+     *
+     * @param key
+     * @param value The new value, null if the entry was removed
+     */
+    public void onEntryChanged(String key, byte[] value);
+}
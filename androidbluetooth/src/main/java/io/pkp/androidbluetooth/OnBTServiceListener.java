@@ -0,0 +1,14 @@
+package io.pkp.androidbluetooth;
+
+/**
+ * Callbacks for a single service hosted by a {@link BluetoothServer}. Several peers may be
+ * connected to the same service, each one is identified by its session.
+ */
+public interface OnBTServiceListener {
+
+    public void onServiceConnected(BluetoothServerSession session);
+
+    public void onServiceConnectionLost(BluetoothServerSession session);
+
+    public void onServiceDataReceived(BluetoothServerSession session, int length, byte[] data);
+}
@@ -0,0 +1,172 @@
+package io.pkp.androidbluetooth;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Writes the items of a publisher to one connection. It requests no more than its window ahead
+ * and asks for more as items are written, so a fast producer is held back to the speed of the
+ * link. Writing happens on its own thread, onNext never blocks.
+ * <p/>
+ * With a {@link LinkProbe} the window is scaled by its send rate factor, so fewer items are
+ * requested ahead while round trips spike.
+ * <p/>
+ * The subscription is cancelled when the connection ends or a write fails. A subscriber serves
+ * one publisher and one connection, get a new one after a reconnect.
+ */
+public class OutboundSubscriber implements BTFlow.Subscriber<byte[]> {
+    final String DEBUG_TAG = this.getClass().getName();
+
+    /**
+     * Where the items are written to
+     */
+    interface Sink {
+
+        /**
+         * @return False if the connection is gone or the write failed
+         */
+        boolean write(byte[] data);
+    }
+
+    // Received from caller
+    final Sink mSink;
+    final int mWindow;
+    final LinkProbe mLinkProbe;
+
+    // Member fields, guarded by this
+    final ArrayDeque<byte[]> mQueue;
+    long mRequested;
+    BTFlow.Subscription mSubscription;
+    boolean mCompleted;
+    boolean mClosed;
+    WriteThread mWriteThread;
+
+    OutboundSubscriber(Sink sink, int window) {
+        this(sink, window, null);
+    }
+
+    /**
+     * @param linkProbe Probe of the connection to pace with, may be null
+     */
+    OutboundSubscriber(Sink sink, int window, LinkProbe linkProbe) {
+        this.mSink = sink;
+        this.mWindow = Math.max(1, window);
+        this.mLinkProbe = linkProbe;
+        mQueue = new ArrayDeque<byte[]>(mWindow);
+    }
+
+    public void onSubscribe(BTFlow.Subscription subscription) {
+        synchronized (this) {
+            if (mSubscription != null || mClosed) {
+                // Only one publisher, and none after the connection is gone
+                subscription.cancel();
+                return;
+            }
+            mSubscription = subscription;
+            mWriteThread = new WriteThread();
+            mWriteThread.start();
+        }
+        requestMore(subscription);
+    }
+
+    public void onNext(byte[] item) {
+        if (item == null)
+            throw new NullPointerException("item");
+        synchronized (this) {
+            if (mClosed)
+                return;
+            if (mQueue.size() == mWindow) {
+                Log.e(DEBUG_TAG, "publisher sent more than requested, item dropped");
+                return;
+            }
+            mQueue.add(item);
+            if (mRequested > 0)
+                mRequested--;
+            notifyAll();
+        }
+    }
+
+    public void onError(Throwable throwable) {
+        Log.e(DEBUG_TAG, "publisher failed", throwable);
+        onComplete();
+    }
+
+    /**
+     * The queued items are still written
+     */
+    public synchronized void onComplete() {
+        mCompleted = true;
+        notifyAll();
+    }
+
+    /**
+     * The connection is gone. Drops queued items and cancels the subscription.
+     */
+    void close() {
+        BTFlow.Subscription subscription;
+        synchronized (this) {
+            if (mClosed)
+                return;
+            mClosed = true;
+            mQueue.clear();
+            subscription = mCompleted ? null : mSubscription;
+            notifyAll();
+        }
+        if (subscription != null)
+            subscription.cancel();
+    }
+
+    /**
+     * Requests what is missing to fill the current window
+     */
+    private void requestMore(BTFlow.Subscription subscription) {
+        int window = mWindow;
+        if (mLinkProbe != null)
+            window = Math.max(1, (int) (mWindow * mLinkProbe.getSendRateFactor()));
+
+        long more;
+        synchronized (this) {
+            more = window - mQueue.size() - mRequested;
+            if (more <= 0 || mClosed)
+                return;
+            mRequested += more;
+        }
+        subscription.request(more);
+    }
+
+    /**
+     * This thread writes queued items and requests more as they are written
+     */
+    private class WriteThread extends Thread {
+
+        public void run() {
+            setName("OutboundSubscriber");
+            while (true) {
+                byte[] item;
+                BTFlow.Subscription subscription;
+                synchronized (OutboundSubscriber.this) {
+                    while (!mClosed && !mCompleted && mQueue.isEmpty()) {
+                        try {
+                            OutboundSubscriber.this.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (mClosed || mQueue.isEmpty())
+                        return;
+                    item = mQueue.poll();
+                    subscription = mCompleted ? null : mSubscription;
+                }
+
+                if (!mSink.write(item)) {
+                    Log.d(DEBUG_TAG, "write failed, cancelling");
+                    close();
+                    return;
+                }
+                if (subscription != null)
+                    requestMore(subscription);
+            }
+        }
+    }
+}
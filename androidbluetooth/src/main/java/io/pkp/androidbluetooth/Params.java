@@ -10,4 +10,43 @@ public class Params {
     public static final int BLUETOOTH_VISIBILITY_TIMEOUT = 300; //  How long the device is visible
     public static final String BLUETOOTH_SERVICE = "mobishare";
     public static final UUID BLUETOOTH_UUID = UUID.fromString("eb87c0d0-afac-11de-8a39-0800200c9a66");
+
+    // Bulk bonding
+    public static final int BULK_BOND_CONCURRENCY = 2;      // Bonds that may run in parallel
+    public static final int BULK_BOND_RETRIES = 2;          // Extra attempts per device after a failure
+    public static final long BULK_BOND_TIMEOUT = 30000;     // Milliseconds allowed per bond attempt
+    public static final long BULK_BOND_RETRY_DELAY = 1000;  // Milliseconds before a retry, grows per attempt
+
+    // Persistent server
+    public static final long SERVER_RELISTEN_DELAY = 2000;  // Milliseconds before reopening a failed listener
+
+    // Framed links
+    public static final int FRAME_MAX_PAYLOAD = 64 * 1024;  // Largest payload accepted in a single frame
+
+    // Link probe
+    public static final long LINK_PROBE_INTERVAL = 1000;    // Milliseconds between two pings
+    public static final int LINK_PROBE_WINDOW = 64;         // Samples kept for RTT and clock statistics
+    public static final float LINK_PROBE_SPIKE_FACTOR = 3f; // RTT above this multiple of the median is a spike
+
+    // Encrypted links
+    public static final long SECURE_HANDSHAKE_TIMEOUT = 5000;       // Milliseconds a write waits for keys
+    public static final long SESSION_TICKET_LIFETIME = 24 * 3600 * 1000L; // Milliseconds a ticket can resume
+    public static final int SESSION_TICKET_CACHE_SIZE = 64;         // Tickets a server remembers
+
+    // Replicated map
+    public static final long REPLICATED_MAP_COALESCE_WINDOW = 100; // Milliseconds updates are batched
+
+    // Reactive streams
+    public static final int FLOW_OUTBOUND_WINDOW = 16;      // Items an outbound subscriber requests ahead
+
+    // Radio scheduler
+    public static final long RADIO_BUSY_THRESHOLD = 32 * 1024;     // Bytes per second above which scans wait
+    public static final long RADIO_IDLE_THRESHOLD = 2 * 1024;      // Bytes per second below which scans run nonstop
+    public static final long RADIO_SCAN_DURATION = 12000;          // Milliseconds of scanning per discovery
+    public static final long RADIO_SCAN_SLICE = 2560;              // Milliseconds of one scan slice, two inquiry trains
+    public static final float RADIO_MIN_SCAN_DUTY = 0.2f;          // Lowest share of time spent scanning
+    public static final long RADIO_MAX_SCAN_DEFERRAL = 60000;      // Milliseconds a discovery may wait for traffic to calm
+    public static final float RADIO_SCAN_THROUGHPUT_PENALTY = 0.6f; // Estimated share of throughput lost while scanning
+    public static final long RADIO_CHECK_INTERVAL = 500;           // Milliseconds between two scheduling decisions
+    public static final int RADIO_MAX_START_FAILURES = 3;          // Failed discovery starts in a row before a request fails
 }
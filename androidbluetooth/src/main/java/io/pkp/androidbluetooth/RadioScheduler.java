@@ -0,0 +1,398 @@
+package io.pkp.androidbluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Keeps device discovery out of the way of data transfers. An inquiry scan takes the radio away
+ * from open RFCOMM links, which then lose most of their throughput. All discovery requests of
+ * {@link BluetoothSetup} and all connect attempts of {@link BluetoothCommunication} go through
+ * this scheduler, and every connection over the radio reports its traffic to it.
+ * <p/>
+ * A discovery request gets Params.RADIO_SCAN_DURATION of scanning, run in slices. While the links
+ * are idle the slices follow each other without a gap. With moderate traffic the share of time
+ * spent scanning is lowered, down to Params.RADIO_MIN_SCAN_DUTY. Above
+ * Params.RADIO_BUSY_THRESHOLD no slice is started and a running one is cut short, until the
+ * request has waited Params.RADIO_MAX_SCAN_DEFERRAL. Connect attempts are queued, run one at a
+ * time and never overlap a slice.
+ * <p/>
+ * There is one scheduler per process, since discovery is global to the adapter. Scheduling runs
+ * on the main thread.
+ */
+public class RadioScheduler {
+    final String DEBUG_TAG = this.getClass().getName();
+
+    // Created on first use of the class, so getInstance() needs no lock on the traffic path
+    private static final RadioScheduler sInstance = new RadioScheduler();
+
+    // Traffic meter, bytes per bucket over the last few buckets
+    private static final long TRAFFIC_BUCKET = 250;
+    private static final int TRAFFIC_BUCKETS = 8;
+
+    /**
+     * Told when a discovery request got all its scanning time, or failed for good
+     */
+    interface ScanClient {
+        void onScanComplete();
+    }
+
+    // Member fields, guarded by this
+    BluetoothAdapter mBluetoothAdapter;
+    Handler mHandler;
+    Set<ScanClient> mScanClients = new LinkedHashSet<ScanClient>();
+    long mScanRequestedAt;
+    long mScannedTime;
+    boolean mScanning;
+    int mStartFailures;
+    long mSliceEnd;
+    long mGapEnd;
+    long mLastCheck;
+    boolean mCheckPosted;
+    int mConnectsWaiting;
+    boolean mConnecting;
+
+    // Traffic meter, guarded by mTraffic
+    final long[] mTraffic = new long[TRAFFIC_BUCKETS];
+    long mTrafficBucket;
+
+    // Statistics, guarded by this
+    Stats mStats = new Stats();
+
+    private final Runnable mCheck = new Runnable() {
+        public void run() {
+            synchronized (RadioScheduler.this) {
+                mCheckPosted = false;
+                check();
+            }
+        }
+    };
+
+    private RadioScheduler() {
+        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+    }
+
+    public static RadioScheduler getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Counts bytes read or written on any radio connection. Cheap, called for every read and
+     * write.
+     */
+    void onTraffic(long bytes) {
+        long bucket = SystemClock.elapsedRealtime() / TRAFFIC_BUCKET;
+        synchronized (mTraffic) {
+            advanceTraffic(bucket);
+            mTraffic[(int) (bucket % TRAFFIC_BUCKETS)] += bytes;
+        }
+    }
+
+    /**
+     * Bytes per second over the last two seconds, in both directions of all connections
+     */
+    public long getTrafficRate() {
+        long bucket = SystemClock.elapsedRealtime() / TRAFFIC_BUCKET;
+        long total = 0;
+        synchronized (mTraffic) {
+            advanceTraffic(bucket);
+            for (long bytes : mTraffic)
+                total += bytes;
+        }
+        return total * 1000 / (TRAFFIC_BUCKET * TRAFFIC_BUCKETS);
+    }
+
+    /**
+     * Clears buckets that went by without traffic. Hold mTraffic.
+     */
+    private void advanceTraffic(long bucket) {
+        if (bucket - mTrafficBucket >= TRAFFIC_BUCKETS) {
+            Arrays.fill(mTraffic, 0);
+        } else {
+            for (long b = mTrafficBucket + 1; b <= bucket; b++)
+                mTraffic[(int) (b % TRAFFIC_BUCKETS)] = 0;
+        }
+        mTrafficBucket = Math.max(mTrafficBucket, bucket);
+    }
+
+    /**
+     * Asks for a discovery. Requests made while one is pending share it.
+     *
+     * @return False if bluetooth is not available
+     */
+    synchronized boolean requestScan(ScanClient client) {
+        if (mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled())
+            return false;
+        if (mScanClients.isEmpty()) {
+            mScanRequestedAt = SystemClock.elapsedRealtime();
+            mLastCheck = mScanRequestedAt;
+            mScannedTime = 0;
+            mGapEnd = 0;
+            mStartFailures = 0;
+            mStats.scansRequested++;
+        }
+        mScanClients.add(client);
+        postCheck(0);
+        return true;
+    }
+
+    /**
+     * Withdraws a discovery request, the scan stops once no request is left
+     */
+    synchronized void cancelScan(ScanClient client) {
+        mScanClients.remove(client);
+        if (mScanClients.isEmpty() && mScanning)
+            stopSlice(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Blocks a connecting thread until it may connect, which stops a running scan slice. Call
+     * {@link #releaseConnect()} once the attempt is over.
+     */
+    synchronized void acquireConnect() throws InterruptedException {
+        long start = SystemClock.elapsedRealtime();
+        mConnectsWaiting++;
+        mStats.connectsQueued++;
+        try {
+            if (mScanning) {
+                stopSlice(start);
+                mStats.slicesShortened++;
+            }
+            while (mConnecting || mScanning)
+                wait();
+        } finally {
+            mConnectsWaiting--;
+        }
+        mConnecting = true;
+        mStats.connectWaitMs += SystemClock.elapsedRealtime() - start;
+    }
+
+    synchronized void releaseConnect() {
+        mConnecting = false;
+        notifyAll();
+        if (!mScanClients.isEmpty())
+            postCheck(0);
+    }
+
+    /**
+     * A copy of the statistics so far
+     */
+    public synchronized Stats getStats() {
+        Stats stats = mStats.copy();
+        stats.trafficRate = getTrafficRate();
+        stats.scanDutyCycle = dutyCycle(stats.trafficRate);
+        return stats;
+    }
+
+    /**
+     * Share of time to spend scanning at the given traffic rate
+     */
+    static float dutyCycle(long trafficRate) {
+        if (trafficRate <= Params.RADIO_IDLE_THRESHOLD)
+            return 1f;
+        if (trafficRate >= Params.RADIO_BUSY_THRESHOLD)
+            return Params.RADIO_MIN_SCAN_DUTY;
+        float busy = (trafficRate - Params.RADIO_IDLE_THRESHOLD)
+                / (float) (Params.RADIO_BUSY_THRESHOLD - Params.RADIO_IDLE_THRESHOLD);
+        return 1f - busy * (1f - Params.RADIO_MIN_SCAN_DUTY);
+    }
+
+    private void postCheck(long delay) {
+        if (mCheckPosted)
+            return;
+        if (mHandler == null)
+            mHandler = new Handler(Looper.getMainLooper());
+        mCheckPosted = true;
+        mHandler.postDelayed(mCheck, delay);
+    }
+
+    /**
+     * Decides whether to start, keep or stop scanning. Runs every Params.RADIO_CHECK_INTERVAL
+     * while a discovery request is pending. Hold this.
+     */
+    void check() {
+        long now = SystemClock.elapsedRealtime();
+        long rate = getTrafficRate();
+        account(now, rate);
+
+        if (mScanClients.isEmpty()) {
+            if (mScanning)
+                stopSlice(now);
+            return;
+        }
+
+        // Give up rather than retry forever without an adapter to scan with
+        if (!mBluetoothAdapter.isEnabled()
+                || mStartFailures >= Params.RADIO_MAX_START_FAILURES) {
+            Log.w(DEBUG_TAG, "discovery failed, adapter enabled: "
+                    + mBluetoothAdapter.isEnabled());
+            if (mScanning)
+                stopSlice(now);
+            completeScan(true);
+            return;
+        }
+
+        boolean overdue = now - mScanRequestedAt >= Params.RADIO_MAX_SCAN_DEFERRAL;
+        boolean busy = rate > Params.RADIO_BUSY_THRESHOLD && !overdue;
+
+        if (mScanning) {
+            if (mScannedTime >= Params.RADIO_SCAN_DURATION) {
+                stopSlice(now);
+                completeScan(false);
+                return;
+            }
+            if (busy || mConnectsWaiting > 0) {
+                Log.d(DEBUG_TAG, "traffic at " + rate + " B/s, scan slice cut short");
+                stopSlice(now);
+                mStats.slicesShortened++;
+            } else if (now >= mSliceEnd) {
+                float duty = dutyCycle(rate);
+                if (duty >= 1f) {
+                    mSliceEnd = now + Params.RADIO_SCAN_SLICE;
+                } else {
+                    stopSlice(now);
+                    mGapEnd = now + (long) (Params.RADIO_SCAN_SLICE * (1f - duty) / duty);
+                }
+            }
+        } else if (!busy && !mConnecting && mConnectsWaiting == 0 && now >= mGapEnd) {
+            startSlice(now);
+        }
+
+        postCheck(Params.RADIO_CHECK_INTERVAL);
+    }
+
+    /**
+     * Books the time since the last check. Traffic that flowed while a request waited would have
+     * suffered from a scan, that share counts as avoided loss.
+     */
+    private void account(long now, long rate) {
+        long elapsed = mLastCheck == 0 ? 0 : Math.min(now - mLastCheck,
+                2 * Params.RADIO_CHECK_INTERVAL);
+        mLastCheck = now;
+        if (elapsed <= 0 || mScanClients.isEmpty())
+            return;
+
+        long affectedBytes = (long) (rate * elapsed / 1000 * Params.RADIO_SCAN_THROUGHPUT_PENALTY);
+        if (mScanning) {
+            mScannedTime += elapsed;
+            mStats.scanningMs += elapsed;
+            mStats.bytesLostEstimate += affectedBytes;
+        } else {
+            mStats.deferredMs += elapsed;
+            mStats.bytesSavedEstimate += affectedBytes;
+        }
+    }
+
+    private void startSlice(long now) {
+        if (!mBluetoothAdapter.startDiscovery()) {
+            Log.w(DEBUG_TAG, "startDiscovery() failed");
+            mStartFailures++;
+            mGapEnd = now + Params.RADIO_CHECK_INTERVAL;
+            return;
+        }
+        mStartFailures = 0;
+        mScanning = true;
+        mSliceEnd = now + Math.min(Params.RADIO_SCAN_SLICE,
+                Params.RADIO_SCAN_DURATION - mScannedTime);
+        mStats.slicesStarted++;
+    }
+
+    private void stopSlice(long now) {
+        mBluetoothAdapter.cancelDiscovery();
+        mScanning = false;
+        mGapEnd = now;
+        notifyAll();
+    }
+
+    /**
+     * @param failed True if the request ends without its scanning time
+     */
+    private void completeScan(boolean failed) {
+        final ScanClient[] clients = mScanClients.toArray(new ScanClient[mScanClients.size()]);
+        mScanClients.clear();
+        if (failed)
+            mStats.scansFailed++;
+        else
+            mStats.scansCompleted++;
+
+        // Outside the lock, clients may request the next scan right away
+        mHandler.post(new Runnable() {
+            public void run() {
+                for (ScanClient client : clients)
+                    client.onScanComplete();
+            }
+        });
+    }
+
+    /**
+     * Counters of the scheduler since the process started
+     */
+    public static class Stats {
+        public int scansRequested;
+        public int scansCompleted;
+        public int scansFailed;
+        public int slicesStarted;
+        public int slicesShortened;
+        public long scanningMs;
+        public long deferredMs;
+        public int connectsQueued;
+        public long connectWaitMs;
+
+        /**
+         * Estimated bytes that would have been lost had scans run whenever requested
+         */
+        public long bytesSavedEstimate;
+
+        /**
+         * Estimated bytes lost to the scans that did run
+         */
+        public long bytesLostEstimate;
+
+        // Current state
+        public long trafficRate;
+        public float scanDutyCycle;
+
+        Stats copy() {
+            Stats stats = new Stats();
+            stats.scansRequested = scansRequested;
+            stats.scansCompleted = scansCompleted;
+            stats.scansFailed = scansFailed;
+            stats.slicesStarted = slicesStarted;
+            stats.slicesShortened = slicesShortened;
+            stats.scanningMs = scanningMs;
+            stats.deferredMs = deferredMs;
+            stats.connectsQueued = connectsQueued;
+            stats.connectWaitMs = connectWaitMs;
+            stats.bytesSavedEstimate = bytesSavedEstimate;
+            stats.bytesLostEstimate = bytesLostEstimate;
+            return stats;
+        }
+
+        /**
+         * A single line JSON object, for trend tracking
+         */
+        public String toJson() {
+            return String.format(Locale.US, "{\"scansRequested\":%d,\"scansCompleted\":%d,"
+                            + "\"scansFailed\":%d,\"slicesStarted\":%d,\"slicesShortened\":%d,"
+                            + "\"scanningMs\":%d,\"deferredMs\":%d,"
+                            + "\"connectsQueued\":%d,\"connectWaitMs\":%d,"
+                            + "\"bytesSavedEstimate\":%d,\"bytesLostEstimate\":%d,"
+                            + "\"trafficRate\":%d,\"scanDutyCycle\":%.2f}",
+                    scansRequested, scansCompleted, scansFailed, slicesStarted, slicesShortened,
+                    scanningMs, deferredMs, connectsQueued, connectWaitMs,
+                    bytesSavedEstimate, bytesLostEstimate, trafficRate, scanDutyCycle);
+        }
+
+        @Override
+        public String toString() {
+            return toJson();
+        }
+    }
+}
@@ -0,0 +1,476 @@
+package io.pkp.androidbluetooth;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A key/value map mirrored between the two peers of a framed {@link BluetoothCommunication} link.
+ * Instead of resending the whole state on every change, only changed entries travel.
+ * <p/>
+ * Every entry carries a version, a Lamport clock value plus the id of the replica that wrote it.
+ * The higher version wins, so concurrent writes to a key settle on the same value on both sides.
+ * Local changes are coalesced for a short window and sent as one batch, a key changed many times
+ * in the window goes out once. The window is stretched while the {@link LinkProbe}, if enabled,
+ * sees RTT spikes.
+ * <p/>
+ * Each replica also keeps a version vector, the highest version seen from every replica. The
+ * vectors are swapped on every connect. If they match nothing is sent, otherwise every entry the
+ * peer has not seen yet is sent.
+ */
+public class ReplicatedMap {
+    final String DEBUG_TAG = this.getClass().getName();
+
+    // Message kinds, first byte of a sync message
+    static final int MSG_VECTOR = 0;
+    static final int MSG_DELTA = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Bytes of a delta entry besides key and value: key length, version, origin, value length
+    private static final int ENTRY_OVERHEAD = 2 + 8 + 8 + 4;
+
+    // Received from caller
+    BluetoothCommunication mCommunication;
+    long mCoalesceWindow;
+    OnBTReplicatedMapListener mOnBTReplicatedMapListener;
+
+    // Member fields, guarded by this
+    final long mReplicaId;
+    long mClock;
+    Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    Map<Long, Long> mVector = new HashMap<Long, Long>();
+    Set<String> mDirty = new HashSet<String>();
+    long mFlushAt;
+    boolean mLinkUp;
+    boolean mSendVector;
+    SyncThread mSyncThread;
+
+    // Traffic counters
+    long mBytesSent;
+    long mEntriesSent;
+
+    ReplicatedMap(BluetoothCommunication communication, long coalesceWindow) {
+        this.mCommunication = communication;
+        this.mCoalesceWindow = coalesceWindow;
+        mReplicaId = new SecureRandom().nextLong();
+        mSyncThread = new SyncThread();
+        mSyncThread.start();
+    }
+
+    public synchronized void setOnBTReplicatedMapListener(
+            OnBTReplicatedMapListener onBTReplicatedMapListener) {
+        this.mOnBTReplicatedMapListener = onBTReplicatedMapListener;
+    }
+
+    /**
+     * @return A copy of the value, null if there is none
+     */
+    public synchronized byte[] get(String key) {
+        Entry entry = mEntries.get(key);
+        return entry == null || entry.mValue == null ? null : entry.mValue.clone();
+    }
+
+    /**
+     * Sets a value and schedules it to be sent to the peer
+     *
+     * @throws IllegalArgumentException If key and value do not fit into a single message
+     */
+    public void put(String key, byte[] value) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        int size = 1 + 4 + ENTRY_OVERHEAD + keyBytes.length + (value != null ? value.length : 0);
+        if (keyBytes.length > Short.MAX_VALUE || size > Frames.MAX_MESSAGE_SIZE)
+            throw new IllegalArgumentException("entry too large: " + key);
+        write(key, value != null ? value.clone() : null);
+    }
+
+    /**
+     * Removes a value, the peer removes it as well
+     */
+    public void remove(String key) {
+        write(key, null);
+    }
+
+    /**
+     * A copy of all entries
+     */
+    public synchronized Map<String, byte[]> snapshot() {
+        Map<String, byte[]> snapshot = new HashMap<String, byte[]>();
+        for (Map.Entry<String, Entry> entry : mEntries.entrySet())
+            if (entry.getValue().mValue != null)
+                snapshot.put(entry.getKey(), entry.getValue().mValue.clone());
+        return snapshot;
+    }
+
+    /**
+     * Bytes of sync messages sent so far, versions and vectors included
+     */
+    public synchronized long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * Entries sent so far, an entry sent twice is counted twice
+     */
+    public synchronized long getEntriesSent() {
+        return mEntriesSent;
+    }
+
+    private void write(String key, byte[] value) {
+        // Outside the map lock, BluetoothCommunication calls into the map while holding its own
+        long delay = coalesceWindow();
+
+        synchronized (this) {
+            mClock++;
+            mEntries.put(key, new Entry(key, value, mClock, mReplicaId));
+            mVector.put(mReplicaId, mClock);
+            markDirty(key, delay);
+        }
+    }
+
+    /**
+     * Current coalesce window, stretched by the send rate factor of the link probe. Do not hold
+     * this, the probe is read under the lock of the BluetoothCommunication.
+     */
+    private long coalesceWindow() {
+        LinkProbe probe = mCommunication.getLinkProbe();
+        if (probe == null)
+            return mCoalesceWindow;
+        return (long) (mCoalesceWindow / probe.getSendRateFactor());
+    }
+
+    /**
+     * Queues a key for the next batch, which goes out no later than delay from now
+     */
+    private void markDirty(String key, long delay) {
+        mDirty.add(key);
+        long flushAt = SystemClock.elapsedRealtime() + delay;
+        if (mFlushAt == 0 || flushAt < mFlushAt) {
+            mFlushAt = flushAt;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Called when the link comes up. The vector is sent by the sync thread, since the reader
+     * thread must stay free to complete an encryption handshake.
+     */
+    synchronized void linkUp() {
+        mLinkUp = true;
+        mSendVector = true;
+
+        // The resync covers whatever was changed while disconnected
+        mDirty.clear();
+        mFlushAt = 0;
+        notifyAll();
+    }
+
+    synchronized void linkDown() {
+        mLinkUp = false;
+        mSendVector = false;
+    }
+
+    /**
+     * Stops syncing for good. The local entries stay readable.
+     */
+    public void close() {
+        mSyncThread.cancel();
+    }
+
+    /**
+     * Handles a sync message of the peer
+     */
+    void onMessage(byte[] buffer, int length) {
+        if (length < 1)
+            return;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer, 1, length - 1));
+            if (buffer[0] == MSG_VECTOR)
+                onVector(in);
+            else if (buffer[0] == MSG_DELTA)
+                onDelta(in);
+            else
+                Log.w(DEBUG_TAG, "unknown sync message " + buffer[0]);
+        } catch (IOException e) {
+            Log.e(DEBUG_TAG, "malformed sync message", e);
+        }
+    }
+
+    /**
+     * Queues every entry the peer has not seen yet, unless the vectors match
+     */
+    private synchronized void onVector(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > in.available() / 16)
+            throw new IOException("malformed vector, bad entry count " + count);
+        Map<Long, Long> peerVector = new HashMap<Long, Long>();
+        for (int i = 0; i < count; i++)
+            peerVector.put(in.readLong(), in.readLong());
+
+        if (peerVector.equals(mVector)) {
+            Log.d(DEBUG_TAG, "in sync with peer, " + mEntries.size() + " entries");
+            return;
+        }
+
+        int missing = 0;
+        for (Entry entry : mEntries.values()) {
+            Long seen = peerVector.get(entry.mOrigin);
+            if (seen == null || seen < entry.mVersion) {
+                mDirty.add(entry.mKey);
+                missing++;
+            }
+        }
+        Log.d(DEBUG_TAG, "vectors diverge, resending " + missing + " entries");
+        if (missing > 0) {
+            mFlushAt = SystemClock.elapsedRealtime();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Applies the entries of a delta. The whole message is parsed first, so a malformed one
+     * changes nothing.
+     */
+    private void onDelta(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > in.available() / ENTRY_OVERHEAD)
+            throw new IOException("malformed delta, bad entry count " + count);
+
+        List<Entry> received = new ArrayList<Entry>(count);
+        for (int i = 0; i < count; i++) {
+            int keyLength = in.readUnsignedShort();
+            if (keyLength > in.available())
+                throw new IOException("malformed delta, key length " + keyLength);
+            byte[] keyBytes = new byte[keyLength];
+            in.readFully(keyBytes);
+            long version = in.readLong();
+            long origin = in.readLong();
+            int valueLength = in.readInt();
+            if (valueLength < -1 || valueLength > in.available())
+                throw new IOException("malformed delta, value length " + valueLength);
+            byte[] value = null;
+            if (valueLength >= 0) {
+                value = new byte[valueLength];
+                in.readFully(value);
+            }
+            received.add(new Entry(new String(keyBytes, UTF_8), value, version, origin));
+        }
+
+        List<Entry> changed = new ArrayList<Entry>();
+        OnBTReplicatedMapListener listener;
+        synchronized (this) {
+            for (Entry entry : received) {
+                mClock = Math.max(mClock, entry.mVersion);
+                Long seen = mVector.get(entry.mOrigin);
+                if (seen == null || seen < entry.mVersion)
+                    mVector.put(entry.mOrigin, entry.mVersion);
+
+                Entry local = mEntries.get(entry.mKey);
+                if (local == null || local.isOlderThan(entry.mVersion, entry.mOrigin)) {
+                    mEntries.put(entry.mKey, entry);
+                    changed.add(entry);
+                }
+            }
+            listener = mOnBTReplicatedMapListener;
+        }
+
+        if (listener != null)
+            for (Entry entry : changed)
+                listener.onEntryChanged(entry.mKey,
+                        entry.mValue != null ? entry.mValue.clone() : null);
+    }
+
+    /**
+     * Takes the vector off the queue if it is due
+     *
+     * @return Encoded vector message, null if none is due
+     */
+    private synchronized byte[] takeVector() throws IOException {
+        if (!mSendVector)
+            return null;
+        mSendVector = false;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(MSG_VECTOR);
+        out.writeInt(mVector.size());
+        for (Map.Entry<Long, Long> entry : mVector.entrySet()) {
+            out.writeLong(entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Takes all dirty entries off the queue, oldest version first so the version vector of the
+     * peer only ever moves forward past entries it has seen
+     */
+    private synchronized List<Entry> takeDirty() {
+        List<Entry> dirty = new ArrayList<Entry>(mDirty.size());
+        for (String key : mDirty)
+            dirty.add(mEntries.get(key));
+        mDirty.clear();
+        mFlushAt = 0;
+
+        Collections.sort(dirty, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                if (a.mVersion != b.mVersion)
+                    return a.mVersion < b.mVersion ? -1 : 1;
+                return a.mOrigin < b.mOrigin ? -1 : (a.mOrigin == b.mOrigin ? 0 : 1);
+            }
+        });
+        return dirty;
+    }
+
+    /**
+     * Sends the entries in as few messages as fit
+     *
+     * @return False if the link went down, the entries are then left to the next resync
+     */
+    private boolean sendDelta(List<Entry> entries) throws IOException {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(batch);
+        int count = 0;
+
+        for (Entry entry : entries) {
+            byte[] keyBytes = entry.mKey.getBytes(UTF_8);
+            int size = ENTRY_OVERHEAD + keyBytes.length
+                    + (entry.mValue != null ? entry.mValue.length : 0);
+            if (count > 0 && 1 + 4 + batch.size() + size > Frames.MAX_MESSAGE_SIZE) {
+                if (!sendBatch(batch, count))
+                    return false;
+                batch.reset();
+                count = 0;
+            }
+
+            out.writeShort(keyBytes.length);
+            out.write(keyBytes);
+            out.writeLong(entry.mVersion);
+            out.writeLong(entry.mOrigin);
+            if (entry.mValue != null) {
+                out.writeInt(entry.mValue.length);
+                out.write(entry.mValue);
+            } else {
+                out.writeInt(-1);
+            }
+            count++;
+        }
+        return count == 0 || sendBatch(batch, count);
+    }
+
+    private boolean sendBatch(ByteArrayOutputStream batch, int count) {
+        byte[] body = batch.toByteArray();
+        byte[] message = new byte[1 + 4 + body.length];
+        message[0] = MSG_DELTA;
+        Frames.putInt(message, 1, count);
+        System.arraycopy(body, 0, message, 5, body.length);
+        if (!send(message))
+            return false;
+        synchronized (this) {
+            mEntriesSent += count;
+        }
+        return true;
+    }
+
+    private boolean send(byte[] message) {
+        if (!mCommunication.writeMessage(Frames.TYPE_SYNC, message, 0, message.length))
+            return false;
+        synchronized (this) {
+            mBytesSent += message.length;
+        }
+        return true;
+    }
+
+    /**
+     * A value along with its version. A null value marks a removed entry.
+     */
+    static class Entry {
+        final String mKey;
+        final byte[] mValue;
+        final long mVersion;
+        final long mOrigin;
+
+        Entry(String key, byte[] value, long version, long origin) {
+            mKey = key;
+            mValue = value;
+            mVersion = version;
+            mOrigin = origin;
+        }
+
+        boolean isOlderThan(long version, long origin) {
+            return mVersion < version || (mVersion == version && mOrigin < origin);
+        }
+    }
+
+    /**
+     * This thread sends the version vector after a connect and flushes dirty entries once their
+     * coalesce window is over
+     */
+    private class SyncThread extends Thread {
+        private volatile boolean mmCancelled;
+
+        public void run() {
+            setName("ReplicatedMapSync");
+            while (!mmCancelled) {
+                try {
+                    if (!awaitWork())
+                        break;
+
+                    byte[] vector = takeVector();
+                    if (vector != null && !send(vector))
+                        continue;
+
+                    List<Entry> dirty = takeDirty();
+                    if (!dirty.isEmpty())
+                        sendDelta(dirty);
+                } catch (IOException e) {
+                    Log.e(DEBUG_TAG, "sync failed", e);
+                }
+            }
+        }
+
+        /**
+         * Waits until the link is up and either the vector or a batch is due
+         *
+         * @return False if cancelled
+         */
+        private boolean awaitWork() {
+            synchronized (ReplicatedMap.this) {
+                while (!mmCancelled) {
+                    long now = SystemClock.elapsedRealtime();
+                    if (mLinkUp && (mSendVector || (mFlushAt != 0 && mFlushAt <= now)))
+                        return true;
+                    try {
+                        if (mLinkUp && mFlushAt != 0)
+                            ReplicatedMap.this.wait(mFlushAt - now);
+                        else
+                            ReplicatedMap.this.wait();
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                }
+                return false;
+            }
+        }
+
+        public void cancel() {
+            mmCancelled = true;
+            interrupt();
+        }
+    }
+}
@@ -0,0 +1,473 @@
+package io.pkp.androidbluetooth;
+
+import android.util.Log;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Application layer encryption for a framed {@link BluetoothCommunication} link, meant to give
+ * insecure RFCOMM sockets confidentiality without the cost of secure pairing.
+ * <p/>
+ * Every frame is sealed with AES-128-GCM in place, the IV is a per direction salt followed by a
+ * frame counter which both sides track, so it is never sent. Keys come from an ECDH (P-256)
+ * exchange, one round trip on the first connection to a peer. That handshake also issues a
+ * session ticket, and a client holding a ticket resumes without a key exchange. It derives its
+ * sending keys from the ticket right away, so data goes out in zero round trips. Should the server
+ * not know the ticket any more, the client falls back to a full handshake. Tickets are single
+ * use, a replayed resumption is rejected, and a server answers only one hello per connection.
+ * <p/>
+ * The key exchange is not authenticated on its own. Pass the same pre-shared key on both peers
+ * to rule out a man in the middle, a peer without it fails on the first sealed frame. The key
+ * also authenticates the reject of a resumption, only then is the early data sent again after
+ * the full handshake. Without it a reject could be forged to replay that data, so it is dropped.
+ */
+public class SecureChannel {
+    final String DEBUG_TAG = this.getClass().getName();
+
+    static final int TAG_SIZE = 16;
+    static final int NONCE_SIZE = 16;
+    static final int TICKET_ID_SIZE = 16;
+
+    private static final int KEY_SIZE = 16;
+    private static final int IV_SALT_SIZE = 4;
+    private static final int IV_SIZE = 12;
+    private static final int SECRET_SIZE = 32;
+
+    // Handshake modes, first byte of hello and reply
+    static final int MODE_FULL = 0;
+    static final int MODE_RESUME = 1;
+    static final int MODE_REJECT = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Where the channel writes its frames to, implemented by the connection
+     */
+    interface Link {
+
+        /**
+         * @return False if the write failed
+         */
+        boolean writeFrame(int type, byte[] buffer, int offset, int length);
+
+        /**
+         * Seals and writes plain text that already ends with its message type
+         *
+         * @return One of {@link #WRITE_OK}, {@link #WRITE_FAILED}, {@link #WRITE_NOT_READY}
+         */
+        int writeSealed(byte[] buffer, int offset, int length);
+    }
+
+    static final int WRITE_OK = 0;
+    static final int WRITE_FAILED = 1;
+    static final int WRITE_NOT_READY = 2;
+
+    // Received from caller
+    SessionTicketCache mTicketCache;
+    byte[] mPreSharedKey;
+
+    // Member fields
+    SecureRandom mRandom = new SecureRandom();
+
+    // State of the current connection, guarded by this
+    Link mLink;
+    boolean mClient;
+    String mPeer;
+    KeyPair mKeyPair;
+    byte[] mClientNonce;
+    byte[] mResumeSecret;
+    Direction mSend;
+    Direction mReceive;
+    boolean mEstablished;
+    boolean mResumed;
+    boolean mRejected;
+    List<byte[]> mEarlyData;
+    List<byte[]> mReplay;
+
+    /**
+     * @param ticketCache  Tickets to resume from and store into, share it between connections
+     * @param preSharedKey Secret known to both peers to authenticate the key exchange, may be null
+     */
+    public SecureChannel(SessionTicketCache ticketCache, byte[] preSharedKey) {
+        this.mTicketCache = ticketCache != null ? ticketCache : new SessionTicketCache();
+        this.mPreSharedKey = preSharedKey != null ? preSharedKey.clone() : new byte[0];
+    }
+
+    /**
+     * True once both directions are keyed and the server confirmed the handshake
+     */
+    public synchronized boolean isEstablished() {
+        return mEstablished;
+    }
+
+    /**
+     * True if the current session was resumed from a ticket instead of a full key exchange
+     */
+    public synchronized boolean isResumed() {
+        return mResumed;
+    }
+
+    /**
+     * Starts the handshake of a new connection. The client speaks first, the server waits for its
+     * hello.
+     *
+     * @param peer Address of the remote device, used to look up tickets on the client
+     * @return False if the handshake could not be started
+     */
+    synchronized boolean start(Link link, boolean client, String peer) {
+        reset();
+        mLink = link;
+        mClient = client;
+        mPeer = peer;
+        if (!client)
+            return true;
+
+        try {
+            SessionTicketCache.Ticket ticket = mTicketCache.getClientTicket(peer);
+            if (ticket != null)
+                return sendResumeHello(ticket);
+            return sendFullHello();
+        } catch (GeneralSecurityException e) {
+            Log.e(DEBUG_TAG, "handshake could not be started", e);
+            return false;
+        }
+    }
+
+    /**
+     * Forgets the keys of the connection and wakes up waiting writers
+     */
+    synchronized void stop() {
+        reset();
+        notifyAll();
+    }
+
+    /**
+     * Blocks until data can be sealed or the link goes down
+     *
+     * @return False on timeout or if the link is down
+     */
+    synchronized boolean awaitSendKeys(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (mSend == null && mLink != null) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0)
+                return false;
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return mSend != null;
+    }
+
+    /**
+     * Encrypts in place. The buffer needs room for {@link #TAG_SIZE} more bytes after the data.
+     *
+     * @return Length of the sealed data, -1 if there are no keys to send with
+     */
+    synchronized int seal(byte[] buffer, int offset, int length) throws GeneralSecurityException {
+        if (mSend == null)
+            return -1;
+
+        // Early data is kept until the server accepted the resumption
+        if (mEarlyData != null)
+            mEarlyData.add(Arrays.copyOfRange(buffer, offset, offset + length));
+
+        mSend.mCipher.init(Cipher.ENCRYPT_MODE, mSend.mKey, mSend.nextIv());
+        return mSend.mCipher.doFinal(buffer, offset, length, buffer, offset);
+    }
+
+    /**
+     * Decrypts in place
+     *
+     * @return Length of the plain data, -1 if there are no keys yet and the frame is dropped
+     * @throws GeneralSecurityException If the frame was tampered with or sealed with other keys
+     */
+    synchronized int open(byte[] buffer, int offset, int length) throws GeneralSecurityException {
+        if (mReceive == null)
+            return -1;
+        mReceive.mCipher.init(Cipher.DECRYPT_MODE, mReceive.mKey, mReceive.nextIv());
+        return mReceive.mCipher.doFinal(buffer, offset, length, buffer, offset);
+    }
+
+    /**
+     * Server side, answers a client hello
+     */
+    synchronized void onHello(byte[] payload, int length) throws GeneralSecurityException {
+        if (mClient || length < 1 + NONCE_SIZE)
+            throw new GeneralSecurityException("unexpected hello");
+        // Keys are never replaced, and after a reject only the full handshake may follow
+        if (mEstablished || (mRejected && payload[0] != MODE_FULL))
+            throw new GeneralSecurityException("hello on a link already answered");
+        byte[] clientNonce = Arrays.copyOfRange(payload, 1, 1 + NONCE_SIZE);
+        byte[] serverNonce = randomBytes(NONCE_SIZE);
+        byte[] nonces = concat(clientNonce, serverNonce);
+        byte[] ticketId = randomBytes(TICKET_ID_SIZE);
+
+        if (payload[0] == MODE_RESUME) {
+            if (length < 1 + NONCE_SIZE + TICKET_ID_SIZE)
+                throw new GeneralSecurityException("malformed hello");
+            byte[] offeredId = Arrays.copyOfRange(payload, 1 + NONCE_SIZE,
+                    1 + NONCE_SIZE + TICKET_ID_SIZE);
+            SessionTicketCache.Ticket ticket = mTicketCache.takeServerTicket(offeredId);
+            if (ticket == null) {
+                // Unknown, expired or replayed ticket. Early data is dropped, see open().
+                mRejected = true;
+                byte[] reply = concat(new byte[]{MODE_REJECT}, rejectTag(clientNonce));
+                mLink.writeFrame(Frames.TYPE_HELLO_REPLY, reply, 0, reply.length);
+                return;
+            }
+
+            mReceive = new Direction(hkdf(clientNonce, ticket.mSecret, "c2s", KEY_SIZE + IV_SALT_SIZE));
+            mSend = new Direction(hkdf(nonces, ticket.mSecret, "s2c", KEY_SIZE + IV_SALT_SIZE));
+            mTicketCache.putServerTicket(ticketId,
+                    hkdf(nonces, ticket.mSecret, "resumption", SECRET_SIZE));
+            mResumed = true;
+
+            byte[] reply = concat(new byte[]{MODE_RESUME}, serverNonce, ticketId);
+            mLink.writeFrame(Frames.TYPE_HELLO_REPLY, reply, 0, reply.length);
+        } else if (payload[0] == MODE_FULL) {
+            PublicKey clientKey = decodePublicKey(payload, 1 + NONCE_SIZE,
+                    length - 1 - NONCE_SIZE);
+            KeyPair keyPair = generateKeyPair();
+            byte[] ikm = concat(agree(keyPair, clientKey), mPreSharedKey);
+
+            mReceive = new Direction(hkdf(nonces, ikm, "c2s", KEY_SIZE + IV_SALT_SIZE));
+            mSend = new Direction(hkdf(nonces, ikm, "s2c", KEY_SIZE + IV_SALT_SIZE));
+            mTicketCache.putServerTicket(ticketId, hkdf(nonces, ikm, "resumption", SECRET_SIZE));
+            mResumed = false;
+
+            byte[] reply = concat(new byte[]{MODE_FULL}, serverNonce, ticketId,
+                    keyPair.getPublic().getEncoded());
+            mLink.writeFrame(Frames.TYPE_HELLO_REPLY, reply, 0, reply.length);
+        } else {
+            throw new GeneralSecurityException("unknown hello mode " + payload[0]);
+        }
+
+        mEstablished = true;
+        notifyAll();
+    }
+
+    /**
+     * Client side, completes the handshake with the reply of the server
+     */
+    synchronized void onHelloReply(byte[] payload, int length) throws GeneralSecurityException {
+        if (!mClient || mEstablished || length < 1)
+            throw new GeneralSecurityException("unexpected hello reply");
+
+        if (payload[0] == MODE_REJECT) {
+            if (mResumeSecret == null)
+                throw new GeneralSecurityException("unexpected reject");
+            byte[] tag = rejectTag(mClientNonce);
+            if (length != 1 + tag.length || !MessageDigest.isEqual(tag,
+                    Arrays.copyOfRange(payload, 1, length)))
+                throw new GeneralSecurityException("reject not authenticated");
+
+            // Hold writes back until the full handshake is done, then send early data again
+            Log.d(DEBUG_TAG, "resumption rejected, falling back to key exchange");
+            mTicketCache.removeClientTicket(mPeer);
+            if (mPreSharedKey.length > 0)
+                mReplay = mEarlyData;
+            else if (!mEarlyData.isEmpty())
+                Log.w(DEBUG_TAG, "early data dropped, the reject is not authenticated");
+            mEarlyData = null;
+            mSend = null;
+            sendFullHello();
+            return;
+        }
+
+        if (length < 1 + NONCE_SIZE + TICKET_ID_SIZE)
+            throw new GeneralSecurityException("malformed hello reply");
+        byte[] serverNonce = Arrays.copyOfRange(payload, 1, 1 + NONCE_SIZE);
+        byte[] ticketId = Arrays.copyOfRange(payload, 1 + NONCE_SIZE,
+                1 + NONCE_SIZE + TICKET_ID_SIZE);
+        byte[] nonces = concat(mClientNonce, serverNonce);
+
+        if (payload[0] == MODE_RESUME && mResumeSecret != null) {
+            mReceive = new Direction(hkdf(nonces, mResumeSecret, "s2c", KEY_SIZE + IV_SALT_SIZE));
+            mTicketCache.putClientTicket(mPeer, ticketId,
+                    hkdf(nonces, mResumeSecret, "resumption", SECRET_SIZE));
+            mResumed = true;
+        } else if (payload[0] == MODE_FULL && mKeyPair != null) {
+            int keyOffset = 1 + NONCE_SIZE + TICKET_ID_SIZE;
+            PublicKey serverKey = decodePublicKey(payload, keyOffset, length - keyOffset);
+            byte[] ikm = concat(agree(mKeyPair, serverKey), mPreSharedKey);
+
+            mSend = new Direction(hkdf(nonces, ikm, "c2s", KEY_SIZE + IV_SALT_SIZE));
+            mReceive = new Direction(hkdf(nonces, ikm, "s2c", KEY_SIZE + IV_SALT_SIZE));
+            mTicketCache.putClientTicket(mPeer, ticketId,
+                    hkdf(nonces, ikm, "resumption", SECRET_SIZE));
+            mResumed = false;
+        } else {
+            throw new GeneralSecurityException("unexpected hello reply mode " + payload[0]);
+        }
+
+        mEarlyData = null;
+        mKeyPair = null;
+        mResumeSecret = null;
+        mEstablished = true;
+
+        // Resend what the server dropped with the rejected resumption
+        if (mReplay != null) {
+            List<byte[]> replay = mReplay;
+            mReplay = null;
+            for (byte[] data : replay)
+                if (mLink.writeSealed(data, 0, data.length) != WRITE_OK)
+                    break;
+        }
+        notifyAll();
+    }
+
+    private boolean sendFullHello() throws GeneralSecurityException {
+        mKeyPair = generateKeyPair();
+        mClientNonce = randomBytes(NONCE_SIZE);
+        mResumeSecret = null;
+        byte[] hello = concat(new byte[]{MODE_FULL}, mClientNonce,
+                mKeyPair.getPublic().getEncoded());
+        return mLink.writeFrame(Frames.TYPE_HELLO, hello, 0, hello.length);
+    }
+
+    private boolean sendResumeHello(SessionTicketCache.Ticket ticket)
+            throws GeneralSecurityException {
+        mClientNonce = randomBytes(NONCE_SIZE);
+        mResumeSecret = ticket.mSecret;
+        byte[] hello = concat(new byte[]{MODE_RESUME}, mClientNonce, ticket.mId);
+
+        // Keys for the client direction only depend on the ticket, so data can follow right away
+        mSend = new Direction(hkdf(mClientNonce, mResumeSecret, "c2s", KEY_SIZE + IV_SALT_SIZE));
+        mEarlyData = new ArrayList<byte[]>();
+        return mLink.writeFrame(Frames.TYPE_HELLO, hello, 0, hello.length);
+    }
+
+    /**
+     * Proves a reject came from a server holding the pre-shared key. Empty without a key.
+     */
+    private byte[] rejectTag(byte[] clientNonce) throws GeneralSecurityException {
+        if (mPreSharedKey.length == 0)
+            return new byte[0];
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(mPreSharedKey, "HmacSHA256"));
+        mac.update("reject".getBytes(UTF_8));
+        return mac.doFinal(clientNonce);
+    }
+
+    private void reset() {
+        mLink = null;
+        mKeyPair = null;
+        mClientNonce = null;
+        mResumeSecret = null;
+        mSend = null;
+        mReceive = null;
+        mEstablished = false;
+        mResumed = false;
+        mRejected = false;
+        mEarlyData = null;
+        mReplay = null;
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        mRandom.nextBytes(bytes);
+        return bytes;
+    }
+
+    static KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        return generator.generateKeyPair();
+    }
+
+    static PublicKey decodePublicKey(byte[] buffer, int offset, int length)
+            throws GeneralSecurityException {
+        if (length <= 0)
+            throw new GeneralSecurityException("missing public key");
+        byte[] encoded = Arrays.copyOfRange(buffer, offset, offset + length);
+        return KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    static byte[] agree(KeyPair keyPair, PublicKey peerKey) throws GeneralSecurityException {
+        KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+        agreement.init(keyPair.getPrivate());
+        agreement.doPhase(peerKey, true);
+        return agreement.generateSecret();
+    }
+
+    /**
+     * HKDF with HMAC-SHA256 (RFC 5869)
+     */
+    static byte[] hkdf(byte[] salt, byte[] ikm, String info, int length)
+            throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt.length == 0 ? new byte[32] : salt, "HmacSHA256"));
+        byte[] prk = mac.doFinal(ikm);
+
+        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        byte[] infoBytes = info.getBytes(UTF_8);
+        byte[] output = new byte[length];
+        byte[] block = new byte[0];
+        int position = 0;
+        for (int counter = 1; position < length; counter++) {
+            mac.update(block);
+            mac.update(infoBytes);
+            mac.update((byte) counter);
+            block = mac.doFinal();
+            int count = Math.min(block.length, length - position);
+            System.arraycopy(block, 0, output, position, count);
+            position += count;
+        }
+        return output;
+    }
+
+    static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts)
+            length += part.length;
+        byte[] result = new byte[length];
+        int position = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, position, part.length);
+            position += part.length;
+        }
+        return result;
+    }
+
+    /**
+     * Key, IV and frame counter of one direction. The cipher instance is reused for every frame.
+     */
+    static class Direction {
+        final SecretKeySpec mKey;
+        final byte[] mIv = new byte[IV_SIZE];
+        final Cipher mCipher;
+        long mCounter;
+
+        Direction(byte[] material) throws GeneralSecurityException {
+            mKey = new SecretKeySpec(material, 0, KEY_SIZE, "AES");
+            System.arraycopy(material, KEY_SIZE, mIv, 0, IV_SALT_SIZE);
+            mCipher = Cipher.getInstance("AES/GCM/NoPadding");
+        }
+
+        GCMParameterSpec nextIv() {
+            Frames.putLong(mIv, IV_SALT_SIZE, mCounter++);
+            return new GCMParameterSpec(TAG_SIZE * 8, mIv);
+        }
+    }
+}
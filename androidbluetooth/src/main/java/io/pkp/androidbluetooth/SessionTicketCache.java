@@ -0,0 +1,111 @@
+package io.pkp.androidbluetooth;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers resumption secrets of {@link SecureChannel} sessions, so a reconnecting peer can skip
+ * the key exchange. Clients keep the last ticket per peer address, servers keep a bounded number
+ * of tickets by id. A server hands out every ticket only once, a replayed resumption is rejected.
+ * <p/>
+ * Share one cache between connections to resume across them. Tickets are kept in memory only.
+ */
+public class SessionTicketCache {
+
+    // Member fields
+    final Map<String, Ticket> mClientTickets = new HashMap<String, Ticket>();
+    final LinkedHashMap<String, Ticket> mServerTickets = new LinkedHashMap<String, Ticket>();
+    long mLifetime = Params.SESSION_TICKET_LIFETIME;
+    int mMaxServerTickets = Params.SESSION_TICKET_CACHE_SIZE;
+
+    /**
+     * Milliseconds a ticket can be used to resume after it was issued
+     */
+    public synchronized void setLifetime(long lifetime) {
+        this.mLifetime = lifetime;
+    }
+
+    /**
+     * Forget all tickets, every peer will go through a full key exchange again
+     */
+    public synchronized void clear() {
+        mClientTickets.clear();
+        mServerTickets.clear();
+    }
+
+    synchronized void putClientTicket(String peer, byte[] id, byte[] secret) {
+        if (peer == null)
+            return;
+        mClientTickets.put(peer, new Ticket(id, secret, SystemClock.elapsedRealtime() + mLifetime));
+    }
+
+    /**
+     * @return The ticket for the peer, null if there is none or it expired
+     */
+    synchronized Ticket getClientTicket(String peer) {
+        if (peer == null)
+            return null;
+        Ticket ticket = mClientTickets.get(peer);
+        if (ticket != null && ticket.mExpiresAt < SystemClock.elapsedRealtime()) {
+            mClientTickets.remove(peer);
+            return null;
+        }
+        return ticket;
+    }
+
+    synchronized void removeClientTicket(String peer) {
+        if (peer != null)
+            mClientTickets.remove(peer);
+    }
+
+    synchronized void putServerTicket(byte[] id, byte[] secret) {
+        mServerTickets.put(toHex(id), new Ticket(id, secret,
+                SystemClock.elapsedRealtime() + mLifetime));
+
+        // Drop the oldest tickets beyond the limit
+        Iterator<Ticket> iterator = mServerTickets.values().iterator();
+        while (mServerTickets.size() > mMaxServerTickets && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Removes a ticket and returns it, so it cannot be used a second time
+     *
+     * @return The ticket, null if unknown or expired
+     */
+    synchronized Ticket takeServerTicket(byte[] id) {
+        Ticket ticket = mServerTickets.remove(toHex(id));
+        if (ticket != null && ticket.mExpiresAt < SystemClock.elapsedRealtime())
+            return null;
+        return ticket;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        return builder.toString();
+    }
+
+    /**
+     * Id and resumption secret of a finished handshake
+     */
+    static class Ticket {
+        final byte[] mId;
+        final byte[] mSecret;
+        final long mExpiresAt;
+
+        Ticket(byte[] id, byte[] secret, long expiresAt) {
+            mId = id;
+            mSecret = secret;
+            mExpiresAt = expiresAt;
+        }
+    }
+}